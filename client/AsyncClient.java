@@ -0,0 +1,405 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Programmatic client for the MSP server.
+ *
+ * Every call returns at once with a future. Requests carry a request id, so any number of them can
+ * be in flight on the one control connection; a reader thread completes each future when the reply
+ * with its id arrives. Job files go over the data connection opened at login, where the uploads of
+ * different jobs are interleaved, so thousands of submissions need neither a socket nor a thread
+ * each.
+ *
+ * Futures are completed on the reader thread. Callbacks that block should use the async variants
+ * of {@link CompletableFuture}, or they hold up every other reply on the connection.
+ */
+public class AsyncClient implements Closeable {
+    /** The server answered with something other than what the request expects. */
+    public static class ReplyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final ControlFrame.Op op;
+
+        public ReplyException(ControlFrame.Op op) {
+            super("Server replied " + op);
+            this.op = op;
+        }
+    }
+
+    /** What the server knows about a job; the output location and bill are only set once it completed. */
+    public static class JobStatus {
+        public final String status;
+        public final String outputLocation;
+        public final List<String> bill;
+
+        JobStatus(ControlFrame reply) {
+            status = reply.arg(0);
+            outputLocation = reply.argCount() > 1 ? reply.arg(1) : null;
+            bill = reply.argsFrom(2);
+        }
+    }
+
+    /** The id of a submitted batch and the ids of its jobs, in the order of their data folders. */
+    public static class Batch {
+        public final String batchId;
+        public final List<String> jobIds;
+
+        Batch(ControlFrame reply) {
+            batchId = reply.arg(0);
+            jobIds = reply.argsFrom(1);
+        }
+    }
+
+    public interface OutputListener {
+        void outputReceived(String jobId, boolean complete);
+    }
+
+    /** Told about every status change of the jobs this client subscribed to, on the reader thread. */
+    public interface StatusListener {
+        void statusChanged(String jobId, String status);
+    }
+
+    private final String host;
+    private final int dataPort;
+    private final File outputDir;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Map<Integer, CompletableFuture<ControlFrame>> pending = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "async-client");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile DataChannel dataChannel;
+    private volatile OutputListener outputListener;
+    private volatile StatusListener statusListener;
+    private volatile DataChannel.ProgressListener progressListener;
+
+    private AsyncClient(String host, int dataPort, File outputDir, Socket socket) throws IOException {
+        this.host = host;
+        this.dataPort = dataPort;
+        this.outputDir = outputDir;
+        this.socket = socket;
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    /** Connects to the server; output files of this user's jobs are saved under {@code outputDir}. */
+    public static AsyncClient connect(String host, int port, int dataPort, File outputDir) throws IOException {
+        AsyncClient client = new AsyncClient(host, dataPort, outputDir, new Socket(host, port));
+        Thread reader = new Thread(client::readReplies, "async-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+        return client;
+    }
+
+    public void setOutputListener(OutputListener outputListener) {
+        this.outputListener = outputListener;
+    }
+
+    public void setStatusListener(StatusListener statusListener) {
+        this.statusListener = statusListener;
+    }
+
+    public void setProgressListener(DataChannel.ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        if (dataChannel != null && progressListener != null) {
+            dataChannel.setProgressListener(progressListener);
+        }
+    }
+
+    /** Registers the email address and completes with the generated password. */
+    public CompletableFuture<String> register(String email) {
+        return request(ControlFrame.Op.REGISTER, email)
+                .thenApply(reply -> expect(reply, ControlFrame.Op.VALID_EMAIL).arg(0));
+    }
+
+    /** Logs in and opens the data connection. Only one login may be in flight per connection. */
+    public CompletableFuture<Void> login(String email, String password) {
+        return request(ControlFrame.Op.LOGIN, email)
+                .thenCompose(reply -> {
+                    expect(reply, ControlFrame.Op.EMAIL_FOUND);
+                    return request(ControlFrame.Op.PASSWORD, password);
+                })
+                .thenAcceptAsync(reply -> openDataChannel(expect(reply, ControlFrame.Op.LOGIN_SUCCESS).arg(0)),
+                        executor);
+    }
+
+    /**
+     * Submits a job and uploads its script and the files of its data folder. Completes with the job id
+     * once the server has staged every input; inputs the server already holds are not uploaded again.
+     */
+    public CompletableFuture<String> submit(String pythonPath, String dataFolder, String outputFolder, int shards) {
+        return submit(pythonPath, dataFolder, outputFolder, shards, 0);
+    }
+
+    /**
+     * Submits a job with a priority. Among the queued jobs of the same user, a job one level higher
+     * starts as if it had been submitted a minute earlier.
+     */
+    public CompletableFuture<String> submit(String pythonPath, String dataFolder, String outputFolder, int shards,
+            int priority) {
+        return request(ControlFrame.Op.SUBMIT_JOB, pythonPath, dataFolder, outputFolder, String.valueOf(shards),
+                String.valueOf(priority))
+                .thenComposeAsync(reply -> uploadInputs(expect(reply, ControlFrame.Op.JOB_SUBMITTED).arg(0),
+                        pythonPath, dataFolder), executor);
+    }
+
+    /**
+     * Submits one job per data folder, all running the same script, in a single request. The first
+     * job's inputs are uploaded before the rest so the script is sent once and then found in the
+     * server's cache. Completes once every job is staged; the server queues them all together.
+     */
+    public CompletableFuture<Batch> submitBatch(String pythonPath, String outputFolder, List<String> dataFolders) {
+        List<String> args = new ArrayList<>();
+        args.add(pythonPath);
+        args.add(outputFolder);
+        args.addAll(dataFolders);
+        return send(new ControlFrame(nextRequestId.incrementAndGet(), ControlFrame.Op.SUBMIT_BATCH, args))
+                .thenComposeAsync(reply -> {
+                    Batch batch = new Batch(expect(reply, ControlFrame.Op.BATCH_SUBMITTED));
+                    return uploadInputs(batch.jobIds.get(0), pythonPath, dataFolders.get(0))
+                            .thenCompose(first -> {
+                                List<CompletableFuture<String>> rest = new ArrayList<>();
+                                for (int i = 1; i < batch.jobIds.size(); i++) {
+                                    rest.add(uploadInputs(batch.jobIds.get(i), pythonPath, dataFolders.get(i)));
+                                }
+                                return CompletableFuture.allOf(rest.toArray(new CompletableFuture<?>[0]));
+                            })
+                            .thenApply(staged -> batch);
+                }, executor);
+    }
+
+    /** The status of a batch followed by one "id, status" line (tab separated) per job. */
+    public CompletableFuture<List<String>> batchStatus(String batchId) {
+        return request(ControlFrame.Op.BATCH_STATUS, batchId)
+                .thenApply(reply -> expect(reply, ControlFrame.Op.BATCH_FOUND).args());
+    }
+
+    /**
+     * Asks the server to push the status changes of these jobs, and of the shards of split jobs and
+     * batches among them, to the status listener; no ids means every job of the user. Completes with
+     * the current status of each job followed, by job id. Subscriptions to a job end when it finishes.
+     */
+    public CompletableFuture<Map<String, String>> subscribe(String... jobIds) {
+        return request(ControlFrame.Op.SUBSCRIBE, jobIds)
+                .thenApply(reply -> statuses(expect(reply, ControlFrame.Op.SUBSCRIBED).args()));
+    }
+
+    /** Stops following these jobs, or the user's jobs as a whole when no ids are given. */
+    public CompletableFuture<Void> unsubscribe(String... jobIds) {
+        return request(ControlFrame.Op.UNSUBSCRIBE, jobIds)
+                .thenAccept(reply -> expect(reply, ControlFrame.Op.SUBSCRIBED));
+    }
+
+    public CompletableFuture<JobStatus> status(String jobId) {
+        return request(ControlFrame.Op.CHECK_STATUS, jobId)
+                .thenApply(reply -> new JobStatus(expect(reply, ControlFrame.Op.JOB_FOUND)));
+    }
+
+    /** Completes with true if the job was cancelled and false if it can no longer be cancelled. */
+    public CompletableFuture<Boolean> cancel(String jobId) {
+        return request(ControlFrame.Op.CANCEL_JOB, jobId).thenApply(reply -> {
+            if (reply.op == ControlFrame.Op.JOB_NOT_CANCELLABLE || reply.op == ControlFrame.Op.WORKER_NOT_FOUND) {
+                return false;
+            }
+            expect(reply, ControlFrame.Op.JOB_CANCELLED);
+            return true;
+        });
+    }
+
+    public CompletableFuture<JobStatus> bill(String jobId) {
+        return request(ControlFrame.Op.GET_BILL, jobId)
+                .thenApply(reply -> new JobStatus(expect(reply, ControlFrame.Op.JOB_FOUND)));
+    }
+
+    /**
+     * The number of jobs the user has run, then one "id, status, cost" line (tab separated) for each of
+     * the latest of them, oldest first, then the total cost of all of them.
+     */
+    public CompletableFuture<List<String>> billSummary() {
+        return request(ControlFrame.Op.GET_BILL, "")
+                .thenApply(reply -> expect(reply, ControlFrame.Op.BILL_SUMMARY).args());
+    }
+
+    public boolean isConnected() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdown();
+        if (dataChannel != null) {
+            dataChannel.close();
+        }
+        socket.close();
+    }
+
+    private CompletableFuture<String> uploadInputs(String jobId, String pythonPath, String dataFolder) {
+        if (dataChannel == null) {
+            throw new CompletionException(new IOException("No file transfer connection to the server"));
+        }
+        Map<String, File> files = new LinkedHashMap<>();
+        files.put("script/script.py", new File(pythonPath));
+        File[] dataFiles = new File(dataFolder).listFiles(File::isFile);
+        if (dataFiles != null) {
+            for (File file : dataFiles) {
+                files.put("data/" + file.getName(), file);
+            }
+        }
+
+        List<String> manifest = new ArrayList<>();
+        manifest.add(jobId);
+        try {
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                manifest.add(file.getKey());
+                manifest.add(file.getValue().isFile() ? DataChannel.sha256(file.getValue()) : "");
+                manifest.add(String.valueOf(file.getValue().length()));
+            }
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+
+        // The manifest is answered twice under its request id: first with the files the server is
+        // missing, then with FILES_RECEIVED or UPLOAD_FAILED once the upload has been staged.
+        int requestId = nextRequestId.incrementAndGet();
+        return send(new ControlFrame(requestId, ControlFrame.Op.INPUT_MANIFEST, manifest))
+                .thenComposeAsync(reply -> {
+                    Map<String, File> missing = new LinkedHashMap<>();
+                    for (String path : expect(reply, ControlFrame.Op.MISSING_FILES).args()) {
+                        missing.put(path, files.get(path));
+                    }
+                    CompletableFuture<ControlFrame> staged = awaitReply(requestId);
+                    try {
+                        dataChannel.sendFiles(jobId, DataChannel.INPUT, missing);
+                    } catch (IOException e) {
+                        pending.remove(requestId);
+                        throw new CompletionException(e);
+                    }
+                    return staged;
+                }, executor)
+                .thenApply(reply -> expect(reply, ControlFrame.Op.FILES_RECEIVED).arg(0));
+    }
+
+    private CompletableFuture<ControlFrame> request(ControlFrame.Op op, String... args) {
+        return send(new ControlFrame(nextRequestId.incrementAndGet(), op, Arrays.asList(args)));
+    }
+
+    private CompletableFuture<ControlFrame> send(ControlFrame frame) {
+        CompletableFuture<ControlFrame> reply = awaitReply(frame.requestId);
+        try {
+            synchronized (out) {
+                frame.write(out);
+            }
+        } catch (IOException e) {
+            pending.remove(frame.requestId);
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    private CompletableFuture<ControlFrame> awaitReply(int requestId) {
+        CompletableFuture<ControlFrame> reply = new CompletableFuture<>();
+        pending.put(requestId, reply);
+        if (socket.isClosed()) {
+            pending.remove(requestId);
+            reply.completeExceptionally(new EOFException("Connection to server closed"));
+        }
+        return reply;
+    }
+
+    private static Map<String, String> statuses(List<String> pairs) {
+        Map<String, String> statuses = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < pairs.size(); i += 2) {
+            statuses.put(pairs.get(i), pairs.get(i + 1));
+        }
+        return statuses;
+    }
+
+    private static ControlFrame expect(ControlFrame reply, ControlFrame.Op op) {
+        if (reply.op != op) {
+            throw new CompletionException(new ReplyException(reply.op));
+        }
+        return reply;
+    }
+
+    private void readReplies() {
+        IOException failure = new EOFException("Connection to server closed");
+        try {
+            ControlFrame frame;
+            while ((frame = ControlFrame.read(in)) != null) {
+                if (frame.requestId == 0 && frame.op == ControlFrame.Op.JOB_EVENTS) {
+                    StatusListener listener = statusListener;
+                    if (listener != null) {
+                        statuses(frame.args()).forEach(listener::statusChanged);
+                    }
+                    continue;
+                }
+                CompletableFuture<ControlFrame> reply = pending.remove(frame.requestId);
+                if (reply != null) {
+                    reply.complete(frame);
+                } else {
+                    System.out.println("Unexpected reply from server: " + frame);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing connection: " + e.getMessage());
+            }
+            for (Integer requestId : new ArrayList<>(pending.keySet())) {
+                CompletableFuture<ControlFrame> reply = pending.remove(requestId);
+                if (reply != null) {
+                    reply.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    private void openDataChannel(String dataToken) {
+        DataChannel channel;
+        try {
+            channel = DataChannel.connect(host, dataPort, "CLIENT", dataToken);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        if (progressListener != null) {
+            channel.setProgressListener(progressListener);
+        }
+        dataChannel = channel;
+
+        Thread reader = new Thread(() -> {
+            try {
+                channel.readFrames(new DataChannel.Handler() {
+                    @Override
+                    public File openFile(String jobId, String kind, String path) throws IOException {
+                        if (!DataChannel.OUTPUT.equals(kind)) {
+                            return null;
+                        }
+                        return DataChannel.resolve(outputDir, path);
+                    }
+
+                    @Override
+                    public void streamFinished(String jobId, String kind, boolean complete) {
+                        OutputListener listener = outputListener;
+                        if (listener != null) {
+                            listener.outputReceived(jobId, complete);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("File transfer connection closed: " + e.getMessage());
+            }
+        }, "data-channel-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+}
@@ -1,20 +1,19 @@
 import java.io.*;
-import java.net.Socket;
 import java.util.Scanner;
-import java.net.InetSocketAddress;
-import java.net.SocketTimeoutException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 public class Client {
     private static final String SERVER_HOST = "131.217.170.115";
     private static final int SERVER_PORT = 8888;
-    private Socket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private static final int DATA_PORT = 8890;
+    private AsyncClient client;
     private Scanner scanner;
     private String currentUser;
-    private Map<String, Map<String, String>> jobCache;
+    private Map<String, AsyncClient.JobStatus> jobCache;
 
     public Client() {
         scanner = new Scanner(System.in);
@@ -47,9 +46,19 @@ public class Client {
 
     private void connectToServer() throws IOException {
         try {
-            socket = new Socket(SERVER_HOST, SERVER_PORT);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            client = AsyncClient.connect(SERVER_HOST, SERVER_PORT, DATA_PORT, new File("output"));
+            client.setProgressListener((jobId, path, transferred, total) -> {
+                if (transferred == total) {
+                    System.out.println("Transferred " + path + " (" + total + " bytes)");
+                }
+            });
+            client.setOutputListener((jobId, complete) -> {
+                if (complete) {
+                    System.out.println("\nOutput files of job " + jobId + " saved to the output folder");
+                } else {
+                    System.out.println("\nOutput files of job " + jobId + " were not received completely");
+                }
+            });
             System.out.println("Connected to server successfully!");
         } catch (IOException e) {
             System.out.println("Failed to connect to server: " + e.getMessage());
@@ -59,12 +68,8 @@ public class Client {
 
     private void closeConnection() {
         try {
-            if (socket != null)
-                socket.close();
-            if (in != null)
-                in.close();
-            if (out != null)
-                out.close();
+            if (client != null)
+                client.close();
             if (scanner != null)
                 scanner.close();
         } catch (IOException e) {
@@ -131,7 +136,7 @@ public class Client {
                 }
             } catch (IOException e) {
                 System.out.println("Error: " + e.getMessage());
-                if (!socket.isConnected()) {
+                if (!client.isConnected()) {
                     System.out.println("Lost connection to server. Exiting...");
                     return;
                 }
@@ -146,15 +151,11 @@ public class Client {
         System.out.print("Enter email: ");
         String email = scanner.nextLine().trim();
 
-        out.println("REGISTER");
-        out.println(email);
-
-        String response = in.readLine();
-        if ("VALID_EMAIL".equals(response)) {
-            String password = in.readLine().split(": ")[1];
+        try {
+            String password = await(client.register(email));
             System.out.println("Registration successful!");
             System.out.println("Your password is: " + password);
-        } else {
+        } catch (AsyncClient.ReplyException e) {
             System.out.println("Registration failed: Invalid email");
         }
     }
@@ -163,32 +164,22 @@ public class Client {
         System.out.print("Enter email: ");
         String email = scanner.nextLine().trim();
 
-        out.println("LOGIN");
-        out.println(email);
-
-        String response = in.readLine();
-        System.out.println("Server response: " + response);
+        System.out.print("Enter password: ");
+        String password = scanner.nextLine().trim();
 
-        if ("EMAIL_FOUND".equals(response)) {
-            System.out.print("Enter password: ");
-            String password = scanner.nextLine().trim();
-            out.println(password);
-
-            response = in.readLine();
-            System.out.println("Server response: " + response);
-
-            if ("LOGIN_SUCCESS".equals(response)) {
-                currentUser = email;
-                System.out.println("Login successful!");
-            } else if ("LOGIN_FAILED".equals(response)) {
+        try {
+            await(client.login(email, password));
+            currentUser = email;
+            System.out.println("Login successful!");
+        } catch (AsyncClient.ReplyException e) {
+            System.out.println("Server response: " + e.op);
+            if (e.op == ControlFrame.Op.LOGIN_FAILED) {
                 System.out.println("Login failed: Incorrect password");
+            } else if (e.op == ControlFrame.Op.EMAIL_NOT_FOUND) {
+                System.out.println("Login failed: Email not found");
             } else {
                 System.out.println("Login failed: Unexpected response from server");
             }
-        } else if ("EMAIL_NOT_FOUND".equals(response)) {
-            System.out.println("Login failed: Email not found");
-        } else {
-            System.out.println("Login failed: Unexpected response from server");
         }
     }
 
@@ -202,177 +193,30 @@ public class Client {
         System.out.print("Enter output folder path (e.g., C:/path/to/output): ");
         String outputFolder = scanner.nextLine().trim();
 
+        System.out.print("Enter number of workers to split the data files across (1 = no split): ");
+        String shardInput = scanner.nextLine().trim();
+        int shards = shardInput.isEmpty() ? 1 : Integer.parseInt(shardInput);
+
         System.out.println("\nSubmitting job with:");
         System.out.println("Python script: " + pythonPath);
         System.out.println("Data folder: " + dataFolder);
         System.out.println("Output folder: " + outputFolder);
 
-        out.println("SUBMIT_JOB");
-        out.println(pythonPath);
-        out.println(dataFolder);
-        out.println(outputFolder);
-
-        String response = in.readLine();
-        if ("JOB_SUBMITTED".equals(response)) {
-            String requestId = in.readLine().split(": ")[1];
-
-            String portResponse = in.readLine();
-            if (!"FILE_TRANSFER_PORT".equals(portResponse)) {
-                throw new IOException("Expected FILE_TRANSFER_PORT response, got: " + portResponse);
-            }
-
-            String workerHost = in.readLine();
-            int fileTransferPort = Integer.parseInt(in.readLine());
-            System.out.println("File transfer port: " + fileTransferPort);
-            System.out.println("Worker host: " + workerHost);
-
-            try (Socket fileSocket = new Socket()) {
-                System.out.println(
-                        "Attempting to connect to file transfer port " + fileTransferPort + " on " + workerHost);
-                fileSocket.connect(new InetSocketAddress(workerHost, fileTransferPort), 30000); // 30 second timeout
-                System.out.println("Connected to file transfer port");
-
-                DataOutputStream fileOut = new DataOutputStream(fileSocket.getOutputStream());
-
-                System.out.println("\nSending Python script...");
-                File pythonFile = new File(pythonPath);
-                if (!pythonFile.exists()) {
-                    throw new IOException("Python script not found: " + pythonPath);
-                }
-                System.out.println("Python script size: " + pythonFile.length() + " bytes");
-                sendFile(pythonFile, fileOut);
-
-                System.out.println("\nSending data files...");
-                File dataDir = new File(dataFolder);
-                File[] dataFiles = dataDir.listFiles();
-                if (dataFiles != null) {
-                    System.out.println("Found " + dataFiles.length + " data files");
-                    fileOut.writeInt(dataFiles.length);
-                    fileOut.flush();
-                    for (File file : dataFiles) {
-                        System.out.println("Sending data file: " + file.getName());
-                        System.out.println("File size: " + file.length() + " bytes");
-                        fileOut.writeUTF(file.getName());
-                        fileOut.flush();
-                        sendFile(file, fileOut);
-                    }
-                } else {
-                    System.out.println("No data files found in directory");
-                    fileOut.writeInt(0);
-                    fileOut.flush();
-                }
-
-                System.out.println("File transfer completed");
-
-                response = in.readLine();
-                if ("FILES_RECEIVED".equals(response)) {
-                    System.out.println("Worker confirmed receipt of all files");
-
-                    response = in.readLine();
-                    if ("OUTPUT_TRANSFER_PORT".equals(response)) {
-                        String outputWorkerHost = in.readLine();
-                        int outputPort = Integer.parseInt(in.readLine());
-                        System.out.println("\nReceiving output files from " + outputWorkerHost + ":" + outputPort);
-
-                        try (Socket outputSocket = new Socket()) {
-                            outputSocket.connect(new InetSocketAddress(outputWorkerHost, outputPort), 30000);
-                            System.out.println("Connected to worker for output file transfer");
-                            DataInputStream outputIn = new DataInputStream(outputSocket.getInputStream());
-
-                            int numFiles = outputIn.readInt();
-                            System.out.println("Receiving " + numFiles + " output files...");
-
-                            for (int i = 0; i < numFiles; i++) {
-                                String fileName = outputIn.readUTF();
-                                System.out.println("Receiving file: " + fileName);
-
-                                File outputFile = new File("output", fileName);
-                                outputFile.getParentFile().mkdirs();
-
-                                long fileSize = outputIn.readLong();
-                                System.out.println("File size: " + fileSize + " bytes");
-
-                                try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                                    byte[] buffer = new byte[8192];
-                                    long remaining = fileSize;
-                                    long totalRead = 0;
-
-                                    while (remaining > 0) {
-                                        int read = outputIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
-                                        if (read == -1) {
-                                            throw new IOException(
-                                                    "End of stream reached before file transfer completed");
-                                        }
-                                        fos.write(buffer, 0, read);
-                                        remaining -= read;
-                                        totalRead += read;
-                                        if (totalRead % (1024 * 1024) == 0) {
-                                            System.out.println("Progress: " + totalRead + "/" + fileSize + " bytes (" +
-                                                    (totalRead * 100 / fileSize) + "%)");
-                                        }
-                                    }
-                                    System.out.println("File received successfully: " + fileName);
-                                }
-                            }
-                            System.out.println("All output files received successfully");
-                        } catch (Exception e) {
-                            System.out.println("Error receiving output files: " + e.getMessage());
-                            e.printStackTrace();
-                        }
-                    } else {
-                        System.out.println("Unexpected response after FILES_RECEIVED: " + response);
-                    }
-                } else {
-                    System.out.println("Unexpected response after file transfer: " + response);
-                }
-            } catch (SocketTimeoutException e) {
-                System.out.println("Timeout connecting to file transfer port");
-                throw new IOException("File transfer connection timed out", e);
-            }
+        try {
+            long start = System.currentTimeMillis();
+            String requestId = await(client.submit(pythonPath, dataFolder, outputFolder, shards));
+            System.out.println("Server confirmed receipt of all files in "
+                    + (System.currentTimeMillis() - start) + "ms");
             System.out.println("\nJob submitted successfully!");
             System.out.println("Request ID: " + requestId);
+            System.out.println("Output files will be saved to the output folder when the job finishes.");
             System.out.println("You can check the job status using this ID.");
-        } else if ("NOT_LOGGED_IN".equals(response)) {
-            System.out.println("\nPlease login before submitting a job.");
-        } else {
-            System.out.println("\nJob submission: FAILED");
-        }
-    }
-
-    private void sendFile(File file, DataOutputStream out) throws IOException {
-        System.out.println("Sending file: " + file.getAbsolutePath());
-        if (!file.exists()) {
-            throw new IOException("File does not exist: " + file.getAbsolutePath());
-        }
-        if (!file.isFile()) {
-            throw new IOException("Path is not a file: " + file.getAbsolutePath());
-        }
-
-        long fileSize = file.length();
-        System.out.println("File size: " + fileSize + " bytes");
-
-        out.writeLong(fileSize);
-        out.flush();
-
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[8192];
-            long totalSent = 0;
-            int read;
-
-            while ((read = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-                totalSent += read;
-                if (totalSent % (1024 * 1024) == 0) {
-                    System.out.println("Progress: " + totalSent + "/" + fileSize + " bytes (" +
-                            (totalSent * 100 / fileSize) + "%)");
-                }
+        } catch (AsyncClient.ReplyException e) {
+            if (e.op == ControlFrame.Op.NOT_LOGGED_IN) {
+                System.out.println("\nPlease login before submitting a job.");
+            } else {
+                System.out.println("\nJob submission: FAILED (" + e.op + ")");
             }
-            out.flush();
-            System.out.println("File sent successfully: " + file.getAbsolutePath());
-        } catch (Exception e) {
-            System.out.println("Error sending file " + file.getAbsolutePath() + ": " + e.getMessage());
-            e.printStackTrace();
-            throw new IOException("Failed to send file: " + e.getMessage());
         }
     }
 
@@ -381,51 +225,25 @@ public class Client {
         String requestId = scanner.nextLine().trim();
 
         if (jobCache.containsKey(requestId)) {
-            Map<String, String> jobInfo = jobCache.get(requestId);
-            System.out.println("Job status: " + jobInfo.get("status"));
-            System.out.println("\nOutput location: " + jobInfo.get("outputLocation"));
+            AsyncClient.JobStatus jobInfo = jobCache.get(requestId);
+            System.out.println("Job status: " + jobInfo.status);
+            System.out.println("\nOutput location: " + jobInfo.outputLocation);
             return;
         }
 
-        out.println("CHECK_STATUS");
-        out.println(requestId);
-        out.flush();
-
-        String response = in.readLine();
-        if ("JOB_FOUND".equals(response)) {
-            String status = in.readLine();
-            System.out.println("Job status: " + status);
-
-            Map<String, String> jobInfo = new HashMap<>();
-            jobInfo.put("status", status);
-
-            if ("COMPLETED".equals(status)) {
-                String nextResponse = in.readLine();
-                if ("OUTPUT_LOCATION".equals(nextResponse)) {
-                    String outputLocation = in.readLine();
-                    System.out.println("\nOutput location: " + outputLocation);
-                    jobInfo.put("outputLocation", outputLocation);
-
-                    String billInfo = in.readLine();
-                    if ("BILL_INFO".equals(billInfo)) {
-                        String jobId = in.readLine();
-                        String startTime = in.readLine();
-                        String endTime = in.readLine();
-                        String cost = in.readLine();
-
-                        jobInfo.put("billInfo", "true");
-                        jobInfo.put("jobId", jobId);
-                        jobInfo.put("startTime", startTime);
-                        jobInfo.put("endTime", endTime);
-                        jobInfo.put("cost", cost);
-                    }
-                }
+        try {
+            AsyncClient.JobStatus jobInfo = await(client.status(requestId));
+            System.out.println("Job status: " + jobInfo.status);
+            if (jobInfo.outputLocation != null) {
+                System.out.println("\nOutput location: " + jobInfo.outputLocation);
             }
             jobCache.put(requestId, jobInfo);
-        } else if ("JOB_NOT_FOUND".equals(response)) {
-            System.out.println("Job status: NOT FOUND");
-        } else {
-            System.out.println("Job status: PENDING");
+        } catch (AsyncClient.ReplyException e) {
+            if (e.op == ControlFrame.Op.JOB_NOT_FOUND) {
+                System.out.println("Job status: NOT FOUND");
+            } else {
+                System.out.println("Job status: PENDING");
+            }
         }
     }
 
@@ -433,76 +251,54 @@ public class Client {
         System.out.print("Enter request ID: ");
         String requestId = scanner.nextLine().trim();
 
-        out.println("CANCEL_JOB");
-        out.println(requestId);
-
-        String response = in.readLine();
-        if ("JOB_CANCELLED".equals(response)) {
-            System.out.println("Job cancelled successfully");
-        } else if ("JOB_NOT_FOUND".equals(response)) {
-            System.out.println("Job not found");
-        } else {
-            System.out.println("Failed to cancel job");
+        try {
+            if (await(client.cancel(requestId))) {
+                System.out.println("Job cancelled successfully");
+            } else {
+                System.out.println("Failed to cancel job");
+            }
+        } catch (AsyncClient.ReplyException e) {
+            if (e.op == ControlFrame.Op.JOB_NOT_FOUND) {
+                System.out.println("Job not found");
+            } else {
+                System.out.println("Failed to cancel job");
+            }
         }
     }
 
     private void getBill() throws IOException {
-        System.out.print("Enter request ID: ");
+        System.out.print("Enter request ID (leave blank for all your jobs): ");
         String requestId = scanner.nextLine().trim();
 
         if (jobCache.containsKey(requestId)) {
-            Map<String, String> jobInfo = jobCache.get(requestId);
-            if ("COMPLETED".equals(jobInfo.get("status"))) {
-                if (jobInfo.containsKey("billInfo")) {
-                    System.out.println("\nBill Information:");
-                    System.out.println(jobInfo.get("jobId"));
-                    System.out.println(jobInfo.get("startTime"));
-                    System.out.println(jobInfo.get("endTime"));
-                    System.out.println(jobInfo.get("cost"));
-                }
+            AsyncClient.JobStatus jobInfo = jobCache.get(requestId);
+            if ("COMPLETED".equals(jobInfo.status)) {
+                printBill(jobInfo);
             } else {
-                System.out.println("Cannot get bill for " + jobInfo.get("status").toLowerCase() + " job.");
+                System.out.println("Cannot get bill for " + jobInfo.status.toLowerCase() + " job.");
             }
             return;
         }
 
-        out.println("GET_BILL");
-        out.println(requestId);
-        out.flush();
-
-        String response = in.readLine();
-        if ("JOB_FOUND".equals(response)) {
-            String status = in.readLine();
-
-            Map<String, String> jobInfo = new HashMap<>();
-            jobInfo.put("status", status);
+        try {
+            if (requestId.isEmpty()) {
+                List<String> summary = await(client.billSummary());
+                int count = Integer.parseInt(summary.get(0));
+                int shown = summary.size() - 2;
+                System.out.println("\nBill Summary (" + count + " finished jobs"
+                        + (shown < count ? ", latest " + shown + " listed" : "") + "):");
+                for (int i = 1; i <= shown; i++) {
+                    String[] fields = summary.get(i).split("\t");
+                    System.out.println(fields[0] + "  " + fields[1] + "  " + fields[2]);
+                }
+                System.out.println(summary.get(summary.size() - 1));
+                return;
+            }
 
+            AsyncClient.JobStatus jobInfo = await(client.bill(requestId));
+            String status = jobInfo.status;
             if ("COMPLETED".equals(status)) {
-                String nextResponse = in.readLine();
-                if ("OUTPUT_LOCATION".equals(nextResponse)) {
-                    String outputLocation = in.readLine();
-                    jobInfo.put("outputLocation", outputLocation);
-
-                    String billInfo = in.readLine();
-                    if ("BILL_INFO".equals(billInfo)) {
-                        String jobId = in.readLine();
-                        String startTime = in.readLine();
-                        String endTime = in.readLine();
-                        String cost = in.readLine();
-
-                        System.out.println("\nBill Information:");
-                        System.out.println(jobId);
-                        System.out.println(startTime);
-                        System.out.println(endTime);
-                        System.out.println(cost);
-
-                        jobInfo.put("billInfo", "true");
-                        jobInfo.put("jobId", jobId);
-                        jobInfo.put("startTime", startTime);
-                        jobInfo.put("endTime", endTime);
-                        jobInfo.put("cost", cost);
-                    }
-                }
+                printBill(jobInfo);
             } else if ("PENDING".equals(status)) {
                 System.out.println("Cannot get bill for pending job. Please wait until the job is completed.");
             } else if ("PROCESSING".equals(status)) {
@@ -514,10 +310,33 @@ public class Client {
                 System.out.println("Cannot get bill for cancelled job.");
             }
             jobCache.put(requestId, jobInfo);
-        } else if ("JOB_NOT_FOUND".equals(response)) {
-            System.out.println("Job not found");
-        } else {
-            System.out.println("Unexpected response from server: " + response);
+        } catch (AsyncClient.ReplyException e) {
+            if (e.op == ControlFrame.Op.JOB_NOT_FOUND) {
+                System.out.println("Job not found");
+            } else {
+                System.out.println("Unexpected response from server: " + e.op);
+            }
+        }
+    }
+
+    private void printBill(AsyncClient.JobStatus jobInfo) {
+        if (!jobInfo.bill.isEmpty()) {
+            System.out.println("\nBill Information:");
+            for (String line : jobInfo.bill) {
+                System.out.println(line);
+            }
+        }
+    }
+
+    /** Waits for the reply; the menu runs one command at a time. */
+    private static <T> T await(CompletableFuture<T> reply) throws IOException {
+        try {
+            return reply.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,209 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * One command on the control connections between clients, workers and the server.
+ *
+ * A frame is {@code [int length][int requestId][short op][int argCount]} followed by each argument
+ * as {@code [int byteLength][UTF-8 bytes]}, where a byte length of -1 stands for null. The length
+ * covers everything after the length field itself, so a reader always knows how many bytes to wait
+ * for, and a body with bytes left over after its last argument is rejected. A reply carries the
+ * request id of the frame it answers, so a client can have many requests in flight on one
+ * connection; frames that answer nothing carry request id 0.
+ */
+public class ControlFrame {
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    /** Bytes of a frame body before its first argument. */
+    public static final int MIN_BODY_SIZE = 4 + 2 + 4;
+
+    public enum Op {
+        // Client to server
+        REGISTER(1), LOGIN(2), PASSWORD(3), SUBMIT_JOB(4), INPUT_MANIFEST(5), CHECK_STATUS(6), CANCEL_JOB(7),
+        GET_BILL(8), SUBMIT_BATCH(9), BATCH_STATUS(10), SUBSCRIBE(11), UNSUBSCRIBE(12),
+        // Server to client
+        VALID_EMAIL(20), INVALID_EMAIL(21), EMAIL_FOUND(22), EMAIL_NOT_FOUND(23), LOGIN_SUCCESS(24),
+        LOGIN_FAILED(25), NOT_LOGGED_IN(26), JOB_SUBMITTED(27), MISSING_FILES(28), FILES_RECEIVED(29),
+        UPLOAD_FAILED(30), JOB_FOUND(31), JOB_NOT_FOUND(32), JOB_CANCELLED(33), JOB_NOT_CANCELLABLE(34),
+        WORKER_NOT_FOUND(35), BILL_SUMMARY(36), UNKNOWN_COMMAND(37), BATCH_SUBMITTED(38), BATCH_FOUND(39),
+        INVALID_REQUEST(40), SUBSCRIBED(41), JOB_EVENTS(42),
+        // Server to worker
+        WORKER_ID(50), PROCESS_JOB(51),
+        // Worker to server
+        WORKER_HEARTBEAT(60), WORKER_SLOTS(61), MISSING_BLOBS(62), CACHED_BLOBS(63), BLOBS_EVICTED(64),
+        JOB_COMPLETE(65), JOB_STOPPED(66);
+
+        private static final Op[] BY_CODE = new Op[128];
+
+        static {
+            for (Op op : values()) {
+                BY_CODE[op.code] = op;
+            }
+        }
+
+        final short code;
+
+        Op(int code) {
+            this.code = (short) code;
+        }
+
+        static Op of(short code) {
+            return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+        }
+    }
+
+    public final int requestId;
+    public final Op op;
+    private final List<String> args;
+
+    public ControlFrame(int requestId, Op op, List<String> args) {
+        this.requestId = requestId;
+        this.op = op;
+        this.args = args;
+    }
+
+    public ControlFrame(Op op, List<String> args) {
+        this(0, op, args);
+    }
+
+    public static ControlFrame of(Op op, String... args) {
+        return new ControlFrame(op, Arrays.asList(args));
+    }
+
+    /** A frame answering this one, carrying its request id. */
+    public ControlFrame reply(Op op, String... args) {
+        return new ControlFrame(requestId, op, Arrays.asList(args));
+    }
+
+    public ControlFrame reply(Op op, List<String> args) {
+        return new ControlFrame(requestId, op, args);
+    }
+
+    public String arg(int index) {
+        return args.get(index);
+    }
+
+    public int argCount() {
+        return args.size();
+    }
+
+    public List<String> args() {
+        return Collections.unmodifiableList(args);
+    }
+
+    /** The arguments from {@code from} on, for commands that end in a list. */
+    public List<String> argsFrom(int from) {
+        return args().subList(Math.min(from, args.size()), args.size());
+    }
+
+    /** Size of the encoded frame, including its length field. */
+    public int encodedSize() {
+        int size = 4 + MIN_BODY_SIZE;
+        for (String arg : args) {
+            size += 4 + (arg == null ? 0 : utf8Length(arg));
+        }
+        return size;
+    }
+
+    public void encodeTo(ByteBuffer buffer) {
+        buffer.putInt(encodedSize() - 4);
+        buffer.putInt(requestId);
+        buffer.putShort(op.code);
+        buffer.putInt(args.size());
+        for (String arg : args) {
+            if (arg == null) {
+                buffer.putInt(-1);
+            } else {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+        }
+    }
+
+    /** Decodes a frame body, everything after the length field. */
+    public static ControlFrame decode(ByteBuffer body) throws IOException {
+        try {
+            int requestId = body.getInt();
+            Op op = Op.of(body.getShort());
+            int count = body.getInt();
+            if (count < 0 || count > body.remaining() / 4) {
+                throw new IOException("Invalid control frame argument count " + count);
+            }
+            List<String> args = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int length = body.getInt();
+                if (length < 0) {
+                    args.add(null);
+                    continue;
+                }
+                if (length > body.remaining()) {
+                    throw new IOException("Control frame argument of " + length + " bytes overruns the frame");
+                }
+                byte[] bytes = new byte[length];
+                body.get(bytes);
+                args.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            if (op == null) {
+                throw new IOException("Unknown control op code");
+            }
+            if (body.hasRemaining()) {
+                throw new IOException("Control frame has " + body.remaining() + " bytes after its last argument");
+            }
+            return new ControlFrame(requestId, op, args);
+        } catch (RuntimeException e) {
+            throw new IOException("Malformed control frame: " + e);
+        }
+    }
+
+    /** Blocking read for clients and workers; returns null when the connection is closed. */
+    public static ControlFrame read(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < MIN_BODY_SIZE || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid control frame length " + length);
+        }
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    /** Blocking write for clients and workers; callers serialise writes to the same stream. */
+    public void write(DataOutputStream out) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize());
+        encodeTo(buffer);
+        out.write(buffer.array());
+        out.flush();
+    }
+
+    @Override
+    public String toString() {
+        return op + (requestId == 0 ? "" : "#" + requestId) + (args.isEmpty() ? "" : " " + args);
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // an unpaired surrogate is encoded as '?'
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,183 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Adds workers when jobs queue up and retires workers that sit idle. It runs on its own thread and
+ * launches through the executor, so no client or scheduler thread ever waits for a worker to start.
+ *
+ * Workers are added when more than QUEUE_THRESHOLD jobs are queued, when the oldest queued job has
+ * waited longer than MAX_QUEUE_WAIT, or at once when there are no workers at all; enough are launched
+ * to give every queued job a slot. A worker is only retired once nothing is queued, fewer than half of
+ * all slots are busy and it has been idle for IDLE_RETIREMENT. The gap between the two conditions and
+ * the cooldowns after each step keep an uneven load from launching and retiring workers in turn.
+ */
+public class Autoscaler implements Runnable {
+    private static final long CHECK_INTERVAL = 1000;
+    private static final int QUEUE_THRESHOLD = 5;
+    private static final long MAX_QUEUE_WAIT = 5000;
+    private static final double SCALE_DOWN_UTILIZATION = 0.5;
+    private static final long IDLE_RETIREMENT = 60000;
+    private static final long SCALE_UP_COOLDOWN = 5000;
+    private static final long SCALE_DOWN_COOLDOWN = 30000;
+    private static final long WORKER_LAUNCH_TIMEOUT = 30000;
+
+    private final Map<String, WorkerInfo> workers;
+    private final JobScheduler scheduler;
+    private final WorkerProvisioner provisioner;
+    private final ExecutorService executorService;
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final Deque<Long> workerLaunches = new ConcurrentLinkedDeque<>();
+    // Only touched by the autoscaler thread.
+    private final Map<WorkerInfo, Long> lastBusy = new HashMap<>();
+    private final Set<WorkerInfo> draining = new HashSet<>();
+    private long lastScaleUp;
+    private long lastScaleDown;
+    private volatile boolean running = true;
+
+    public Autoscaler(Map<String, WorkerInfo> workers, JobScheduler scheduler, WorkerProvisioner provisioner,
+            ExecutorService executorService, int minWorkers, int maxWorkers) {
+        this.workers = workers;
+        this.scheduler = scheduler;
+        this.provisioner = provisioner;
+        this.executorService = executorService;
+        this.minWorkers = minWorkers;
+        this.maxWorkers = maxWorkers;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "autoscaler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+
+    public void workerConnected() {
+        workerLaunches.pollFirst();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                Thread.sleep(CHECK_INTERVAL);
+                check();
+            } catch (InterruptedException e) {
+                System.out.println("Autoscaler interrupted: " + e.getMessage());
+                return;
+            } catch (Exception e) {
+                System.out.println("Error scaling workers: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        int totalSlots = 0;
+        int busySlots = 0;
+        for (WorkerInfo worker : workers.values()) {
+            totalSlots += worker.slots;
+            busySlots += worker.runningJobs.size();
+            if (!worker.runningJobs.isEmpty() || !lastBusy.containsKey(worker)) {
+                lastBusy.put(worker, now);
+            }
+        }
+        lastBusy.keySet().removeIf(worker -> !workers.containsKey(worker.id));
+        retireDrained();
+
+        int pending = scheduler.pendingCount();
+        double utilization = totalSlots > 0 ? (double) busySlots / totalSlots : 1.0;
+        if (pending > 0 && (workers.isEmpty() || pending > QUEUE_THRESHOLD
+                || scheduler.oldestWait() > MAX_QUEUE_WAIT)) {
+            scaleUp(pending, totalSlots, now);
+        } else if (pending == 0 && utilization < SCALE_DOWN_UTILIZATION) {
+            scaleDown(now);
+        }
+    }
+
+    private void scaleUp(int pending, int totalSlots, long now) {
+        if (now - lastScaleUp < SCALE_UP_COOLDOWN) {
+            return;
+        }
+        long cutoff = now - WORKER_LAUNCH_TIMEOUT;
+        Long launchedAt;
+        while ((launchedAt = workerLaunches.peekFirst()) != null && launchedAt < cutoff) {
+            workerLaunches.pollFirst();
+        }
+
+        int launching = workerLaunches.size();
+        int slotsPerWorker = workers.isEmpty() ? 1 : Math.max(1, totalSlots / workers.size());
+        int wanted = (pending + slotsPerWorker - 1) / slotsPerWorker - launching;
+        int needed = Math.min(wanted, maxWorkers - workers.size() - launching);
+        if (needed <= 0) {
+            if (wanted > 0) {
+                lastScaleUp = now;
+                System.out.println("Maximum number of workers reached (" + maxWorkers + ")");
+            }
+            return;
+        }
+
+        lastScaleUp = now;
+        System.out.println(pending + " jobs queued, the oldest for " + scheduler.oldestWait() + "ms, with "
+                + workers.size() + " workers; launching " + needed + " more");
+        for (int i = 0; i < needed; i++) {
+            workerLaunches.addLast(now);
+            executorService.execute(this::launchWorker);
+        }
+    }
+
+    private void launchWorker() {
+        try {
+            System.out.println("Creating new worker due to high load...");
+            provisioner.launch();
+        } catch (Exception e) {
+            workerLaunches.pollLast();
+            System.out.println("Error creating new worker: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /** Drains the worker that has been idle the longest, if it has been idle long enough. */
+    private void scaleDown(long now) {
+        if (now - lastScaleUp < SCALE_DOWN_COOLDOWN || now - lastScaleDown < SCALE_DOWN_COOLDOWN
+                || workers.size() - draining.size() <= minWorkers) {
+            return;
+        }
+        WorkerInfo idlest = null;
+        for (Map.Entry<WorkerInfo, Long> entry : lastBusy.entrySet()) {
+            if (!draining.contains(entry.getKey()) && now - entry.getValue() >= IDLE_RETIREMENT
+                    && (idlest == null || entry.getValue() < lastBusy.get(idlest))) {
+                idlest = entry.getKey();
+            }
+        }
+        if (idlest == null) {
+            return;
+        }
+
+        lastScaleDown = now;
+        System.out.println("Worker " + idlest.id + " has been idle for " + (now - lastBusy.get(idlest))
+                + "ms, draining it");
+        scheduler.drain(idlest);
+        draining.add(idlest);
+        retireDrained();
+    }
+
+    /** Retires the draining workers whose last job has finished. */
+    private void retireDrained() {
+        Iterator<WorkerInfo> iterator = draining.iterator();
+        while (iterator.hasNext()) {
+            WorkerInfo worker = iterator.next();
+            if (!workers.containsKey(worker.id)) {
+                iterator.remove();
+            } else if (worker.runningJobs.isEmpty()) {
+                iterator.remove();
+                System.out.println("Retiring worker " + worker.id);
+                provisioner.retire(worker);
+            }
+        }
+    }
+}
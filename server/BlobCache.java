@@ -0,0 +1,91 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class BlobCache {
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    public BlobCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        directory.mkdirs();
+
+        File[] existing = directory.listFiles(file -> file.isFile() && file.getName().matches("[0-9a-f]{64}"));
+        if (existing != null) {
+            Arrays.sort(existing, Comparator.comparingLong(File::lastModified));
+            for (File blob : existing) {
+                blobs.put(blob.getName(), blob.length());
+                totalBytes += blob.length();
+            }
+        }
+        System.out.println("Blob cache " + directory.getAbsolutePath() + " holds " + blobs.size() + " blobs ("
+                + totalBytes + " bytes)");
+    }
+
+    public synchronized boolean contains(String hash) {
+        return blobs.containsKey(hash);
+    }
+
+    public synchronized Set<String> hashes() {
+        return new HashSet<>(blobs.keySet());
+    }
+
+    /** Links the cached blob into {@code target}, returning false if it is not cached. */
+    public synchronized boolean linkTo(String hash, File target) {
+        if (blobs.get(hash) == null) {
+            return false;
+        }
+        File blob = new File(directory, hash);
+        try {
+            target.getParentFile().mkdirs();
+            Files.deleteIfExists(target.toPath());
+            link(blob, target);
+            blob.setLastModified(System.currentTimeMillis());
+            return true;
+        } catch (IOException e) {
+            System.out.println("Cached blob " + hash + " is unusable: " + e.getMessage());
+            blobs.remove(hash);
+            totalBytes -= blob.length();
+            blob.delete();
+            return false;
+        }
+    }
+
+    /** Adds {@code source} to the cache under {@code hash} and returns the hashes evicted to make room. */
+    public synchronized List<String> add(String hash, File source) throws IOException {
+        List<String> evicted = new ArrayList<>();
+        if (blobs.get(hash) != null) {
+            return evicted;
+        }
+        File blob = new File(directory, hash);
+        Files.deleteIfExists(blob.toPath());
+        link(source, blob);
+        blob.setReadOnly();
+        blobs.put(hash, blob.length());
+        totalBytes += blob.length();
+
+        Iterator<Map.Entry<String, Long>> oldest = blobs.entrySet().iterator();
+        while (totalBytes > maxBytes && oldest.hasNext()) {
+            Map.Entry<String, Long> entry = oldest.next();
+            if (entry.getKey().equals(hash)) {
+                continue;
+            }
+            new File(directory, entry.getKey()).delete();
+            totalBytes -= entry.getValue();
+            evicted.add(entry.getKey());
+            oldest.remove();
+        }
+        return evicted;
+    }
+
+    private static void link(File existing, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), existing.toPath());
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(existing.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -138,9 +138,9 @@ public class ClientHandler implements Runnable {
         if (job != null) {
             System.out.println("Found job in active jobs");
             out.println("JOB_FOUND");
-            out.println(job.status);
+            out.println(job.state());
 
-            if ("COMPLETED".equals(job.status)) {
+            if (job.state() == JobState.COMPLETED) {
                 out.println("OUTPUT_LOCATION");
                 out.println(job.outputFolder);
                 out.println("BILL_INFO");
@@ -155,9 +155,9 @@ public class ClientHandler implements Runnable {
             if (historicalJob != null) {
                 System.out.println("Found job in history");
                 out.println("JOB_FOUND");
-                out.println(historicalJob.status);
+                out.println(historicalJob.state());
 
-                if ("COMPLETED".equals(historicalJob.status)) {
+                if (historicalJob.state() == JobState.COMPLETED) {
                     out.println("OUTPUT_LOCATION");
                     out.println(historicalJob.outputFolder);
                     out.println("BILL_INFO");
@@ -178,19 +178,19 @@ public class ClientHandler implements Runnable {
         JobInfo job = jobs.get(jobId);
 
         if (job != null) {
-            if ("PROCESSING".equals(job.status)) {
+            if (job.state() == JobState.PROCESSING) {
                 WorkerInfo worker = workers.get(job.assignedWorkerId);
-                if (worker != null) {
-                    worker.out.println("CANCEL_JOB");
-                    job.status = "CANCELLED";
+                if (worker == null) {
+                    out.println("WORKER_NOT_FOUND");
+                } else if (job.transition(JobState.PROCESSING, JobState.CANCELLED)) {
+                    worker.send(ControlFrame.Op.CANCEL_JOB, job.id);
                     job.endTime = System.currentTimeMillis();
                     out.println("JOB_CANCELLED");
                 } else {
-                    out.println("WORKER_NOT_FOUND");
+                    out.println("JOB_NOT_CANCELLABLE");
                 }
-            } else if ("PENDING".equals(job.status)) {
+            } else if (job.transition(JobState.PENDING, JobState.CANCELLED)) {
                 pendingJobs.remove(job);
-                job.status = "CANCELLED";
                 job.endTime = System.currentTimeMillis();
                 out.println("JOB_CANCELLED");
             } else {
@@ -234,6 +234,9 @@ public class ClientHandler implements Runnable {
             WorkerInfo worker = selectWorker();
 
             if (worker != null) {
+                if (!worker.claimSlot(job.id)) {
+                    continue;
+                }
                 pendingJobs.poll();
                 assignJobToWorker(job, worker);
             } else if (workers.size() < MAX_WORKERS) {
@@ -257,22 +260,18 @@ public class ClientHandler implements Runnable {
     }
 
     private void assignJobToWorker(JobInfo job, WorkerInfo worker) {
-        worker.available = false;
-        worker.currentJob = job.id;
-        job.status = "PROCESSING";
+        if (!job.transition(JobState.PENDING, JobState.PROCESSING)) {
+            return;
+        }
         job.startTime = System.currentTimeMillis();
         job.assignedWorkerId = worker.id;
 
-        worker.out.println("PROCESS_JOB");
-        worker.out.println(job.id);
-        worker.out.println(job.pythonPath);
-        worker.out.println(job.dataFolder);
-        worker.out.println(job.outputFolder);
+        worker.send(ControlFrame.Op.PROCESS_JOB, job.id, job.pythonPath, job.dataFolder, job.outputFolder);
     }
 
     private WorkerInfo selectWorker() {
         return workers.values().stream()
-                .filter(w -> w.available)
+                .filter(WorkerInfo::hasFreeSlot)
                 .min(Comparator.comparingDouble(w -> {
                     double loadFactor = w.completedJobs > 0 ? (double) w.totalExecutionTime / w.completedJobs : 0;
                     return loadFactor;
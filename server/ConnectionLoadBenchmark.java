@@ -0,0 +1,117 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * Load generator for the control port. It starts MSPServer in a child JVM in a scratch directory,
+ * once on pooled platform threads and once with --virtual-threads, and opens client connections that
+ * register, log in and then stay idle. After every quarter of the connections it asks the server for
+ * the heap it has in use after a GC, its live threads and its resident size, and prints them.
+ *
+ * Usage: java ConnectionLoadBenchmark [connections]
+ *
+ * Each connection takes a file descriptor on both sides, so the open file limit must allow for them.
+ * Virtual threads need Java 21; on older releases the server falls back to platform threads.
+ */
+public class ConnectionLoadBenchmark {
+    private static final int CLIENT_PORT = 8888;
+    private static final int STEPS = 4;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--serve")) {
+            serve(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        System.out.println(String.format("%-10s %11s %10s %8s %10s", "threads", "connections", "heap MB",
+                "threads", "RSS MB"));
+        for (boolean virtualThreads : new boolean[] {false, true}) {
+            measure(virtualThreads, connections);
+        }
+    }
+
+    static void measure(boolean virtualThreads, int connections) throws Exception {
+        File directory = Files.createTempDirectory("server").toFile();
+        List<String> command = new ArrayList<>(List.of(Paths.get(System.getProperty("java.home"), "bin", "java")
+                .toString(), "-cp", new File(System.getProperty("java.class.path")).getAbsolutePath(),
+                "ConnectionLoadBenchmark", "--serve", "--no-journal", "--min-workers=0", "--max-workers=0"));
+        if (virtualThreads) {
+            command.add("--virtual-threads");
+        }
+        Process server = new ProcessBuilder(command).directory(directory)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader stats = new BufferedReader(
+                new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+        Writer requests = new OutputStreamWriter(server.getOutputStream(), StandardCharsets.UTF_8);
+        List<JournalBenchmark.Client> clients = new ArrayList<>();
+        try {
+            JournalBenchmark.awaitPort(CLIENT_PORT, server);
+            String mode = virtualThreads ? "virtual" : "platform";
+            for (int step = 0; step <= STEPS; step++) {
+                while (clients.size() < (long) connections * step / STEPS) {
+                    clients.add(new JournalBenchmark.Client("client" + clients.size() + "@benchmark.local"));
+                }
+                requests.write("stats\n");
+                requests.flush();
+                String[] reply = stats.readLine().split(" ");
+                System.out.println(String.format("%-10s %11d %10.1f %8s %10s", mode, clients.size(),
+                        Long.parseLong(reply[0]) / 1048576.0, reply[1],
+                        reply[2].equals("-1") ? "n/a" : String.format("%.1f", Long.parseLong(reply[2]) / 1024.0)));
+            }
+        } finally {
+            for (JournalBenchmark.Client client : clients) {
+                client.socket.close();
+            }
+            server.destroy();
+            server.waitFor();
+            deleteDirectory(directory);
+        }
+    }
+
+    /**
+     * Runs the server with {@code args} in this JVM, logging nowhere, and answers each "stats" line on
+     * standard input with its heap bytes in use, live threads and resident kB (-1 if unknown).
+     */
+    static void serve(String[] args) throws IOException {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> MSPServer.main(args), "server-main");
+        server.setDaemon(true);
+        server.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        while (in.readLine() != null) {
+            System.gc();
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            out.println((runtime.totalMemory() - runtime.freeMemory()) + " "
+                    + ManagementFactory.getThreadMXBean().getThreadCount() + " " + residentKilobytes());
+            out.flush();
+        }
+    }
+
+    private static long residentKilobytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // Not on Linux.
+        }
+        return -1;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        directory.delete();
+    }
+}
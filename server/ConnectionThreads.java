@@ -0,0 +1,30 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+
+/**
+ * Chooses the threads that serve connections. By default every connection gets a pooled platform
+ * thread. With virtual threads each connection gets its own virtual thread, so tens of thousands of
+ * mostly idle client sessions only cost a small heap object each instead of a thread stack.
+ *
+ * Virtual threads need Java 21; they are looked up reflectively so the server still builds and runs
+ * on older releases, where it falls back to platform threads.
+ */
+public class ConnectionThreads {
+    private ConnectionThreads() {
+    }
+
+    public static ExecutorService newExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService executor = (ExecutorService) factory.invoke(null);
+                System.out.println("Serving connections on virtual threads");
+                return executor;
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                System.out.println("Virtual threads need Java 21 or later (running "
+                        + System.getProperty("java.version") + "), using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
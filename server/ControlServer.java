@@ -0,0 +1,391 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Non-blocking server for the control connections of clients and workers.
+ *
+ * A few event-loop threads, each with its own selector, serve every connection. They read into
+ * pooled direct buffers, cut the bytes into {@link ControlFrame}s and hand them to the connection's
+ * listener on the executor, one connection at a time so its frames are handled in order. Listeners
+ * may therefore block (on a journal fsync, say) without stalling any event loop. Writes never block:
+ * a frame that does not fit in the socket buffer is queued and finished when the socket is writable.
+ */
+public class ControlServer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int POOLED_BUFFERS = 1024;
+    // Room for a couple of the largest frames; a peer that lets more than this pile up has stopped reading.
+    private static final long MAX_QUEUED_BYTES = 2L * ControlFrame.MAX_FRAME_SIZE;
+
+    public interface Listener {
+        void frameReceived(ControlFrame frame) throws IOException;
+
+        void connectionClosed();
+
+        /** Called once frames that had to be queued have all been written. */
+        default void drained() throws IOException {
+        }
+    }
+
+    public interface ListenerFactory {
+        Listener accepted(Connection connection) throws IOException;
+    }
+
+    private final EventLoop[] loops;
+    private final ExecutorService executor;
+    private final Queue<ByteBuffer> bufferPool = new ConcurrentLinkedQueue<>();
+    private int nextLoop;
+
+    public ControlServer(int loopCount, ExecutorService executor) throws IOException {
+        this.executor = executor;
+        this.loops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new EventLoop("control-loop-" + i);
+        }
+    }
+
+    public void listen(InetSocketAddress address, ListenerFactory factory) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(address, 50);
+        server.configureBlocking(false);
+        loops[0].execute(() -> loops[0].register(server, SelectionKey.OP_ACCEPT, factory));
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            Thread thread = new Thread(loop, loop.name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = bufferPool.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    private void releaseBuffer(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE && bufferPool.size() < POOLED_BUFFERS) {
+            buffer.clear();
+            bufferPool.offer(buffer);
+        }
+    }
+
+    private class EventLoop implements Runnable {
+        final String name;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String name) throws IOException {
+            this.name = name;
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SelectableChannel channel, int ops, Object attachment) {
+            try {
+                channel.register(selector, ops, attachment);
+            } catch (ClosedChannelException e) {
+                System.out.println("Control channel closed before it was registered");
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // A bad task or connection must not stop the loop every other connection on it relies on.
+                    System.out.println("Error in " + name + ": " + e);
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept((ServerSocketChannel) key.channel(), (ListenerFactory) key.attachment());
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.readFrames();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                connection.close();
+            }
+        }
+
+        private void accept(ServerSocketChannel server, ListenerFactory factory) {
+            try {
+                SocketChannel channel;
+                while ((channel = server.accept()) != null) {
+                    channel.configureBlocking(false);
+                    channel.setOption(java.net.StandardSocketOptions.TCP_NODELAY, true);
+                    EventLoop loop = loops[nextLoop++ % loops.length];
+                    Connection connection = new Connection(channel, loop);
+                    connection.listener = factory.accepted(connection);
+                    SocketChannel accepted = channel;
+                    loop.execute(() -> {
+                        try {
+                            connection.key = accepted.register(loop.selector, SelectionKey.OP_READ, connection);
+                            connection.updateInterest();
+                        } catch (ClosedChannelException e) {
+                            connection.close();
+                        }
+                    });
+                }
+            } catch (IOException e) {
+                System.out.println("Error accepting control connection: " + e.getMessage());
+            }
+        }
+    }
+
+    public class Connection {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final Deque<ByteBuffer> outbound = new ArrayDeque<>();
+        private long queuedBytes;
+        private final Queue<Runnable> inbox = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile SelectionKey key;
+        private volatile Listener listener;
+        private ByteBuffer inbound;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        public String remoteAddress() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "unknown";
+            }
+        }
+
+        /** Queues the frame for sending; safe to call from any thread and never blocks on the socket. */
+        public void send(ControlFrame frame) {
+            int size = frame.encodedSize();
+            if (size > ControlFrame.MAX_FRAME_SIZE) {
+                throw new IllegalArgumentException("Control frame too large: " + size + " bytes");
+            }
+            ByteBuffer buffer = size <= BUFFER_SIZE ? acquireBuffer() : ByteBuffer.allocate(size);
+            frame.encodeTo(buffer);
+            buffer.flip();
+
+            writeLock.lock();
+            try {
+                if (closed.get()) {
+                    releaseBuffer(buffer);
+                    return;
+                }
+                if (outbound.isEmpty()) {
+                    channel.write(buffer);
+                    if (!buffer.hasRemaining()) {
+                        releaseBuffer(buffer);
+                        return;
+                    }
+                }
+                if (queuedBytes + buffer.limit() > MAX_QUEUED_BYTES) {
+                    System.out.println("Closing control connection " + remoteAddress() + ": over "
+                            + MAX_QUEUED_BYTES + " bytes queued for it");
+                    releaseBuffer(buffer);
+                    loop.execute(this::close);
+                    return;
+                }
+                outbound.add(buffer);
+                queuedBytes += buffer.limit();
+            } catch (IOException e) {
+                releaseBuffer(buffer);
+                loop.execute(this::close);
+                return;
+            } finally {
+                writeLock.unlock();
+            }
+            loop.execute(this::updateInterest);
+        }
+
+        /** Runs on the event loop: asks for writability exactly while frames are queued. */
+        private void updateInterest() {
+            SelectionKey current = key;
+            if (current == null || !current.isValid()) {
+                return;
+            }
+            writeLock.lock();
+            try {
+                int ops = SelectionKey.OP_READ | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+                current.interestOps(ops);
+            } catch (CancelledKeyException e) {
+                // Closed concurrently; close() has already cleaned up.
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        /** True while frames are queued behind a full socket buffer, i.e. the peer is not keeping up. */
+        public boolean hasBacklog() {
+            writeLock.lock();
+            try {
+                return !outbound.isEmpty();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        public void send(ControlFrame.Op op, String... args) {
+            send(ControlFrame.of(op, args));
+        }
+
+        public void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing control connection: " + e.getMessage());
+            }
+            writeLock.lock();
+            try {
+                outbound.forEach(ControlServer.this::releaseBuffer);
+                outbound.clear();
+                queuedBytes = 0;
+            } finally {
+                writeLock.unlock();
+            }
+            dispatch(() -> listener.connectionClosed());
+        }
+
+        private void flush() throws IOException {
+            writeLock.lock();
+            try {
+                ByteBuffer buffer;
+                while ((buffer = outbound.peek()) != null) {
+                    channel.write(buffer);
+                    if (buffer.hasRemaining()) {
+                        return;
+                    }
+                    queuedBytes -= buffer.limit();
+                    releaseBuffer(outbound.poll());
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } finally {
+                writeLock.unlock();
+            }
+            dispatch(() -> listener.drained());
+        }
+
+        /** Runs on the event loop: reads what is available and dispatches every complete frame. */
+        private void readFrames() throws IOException {
+            ByteBuffer buffer = inbound != null ? inbound : acquireBuffer();
+            inbound = null;
+            int read = channel.read(buffer);
+            if (read < 0) {
+                releaseBuffer(buffer);
+                throw new EOFException();
+            }
+            buffer.flip();
+
+            while (buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                if (length < ControlFrame.MIN_BODY_SIZE || length > ControlFrame.MAX_FRAME_SIZE) {
+                    releaseBuffer(buffer);
+                    throw new IOException("Invalid control frame length " + length);
+                }
+                if (buffer.remaining() < 4 + length) {
+                    break;
+                }
+                buffer.position(buffer.position() + 4);
+                ByteBuffer body = buffer.slice();
+                body.limit(length);
+                buffer.position(buffer.position() + length);
+                ControlFrame frame = ControlFrame.decode(body);
+                dispatch(() -> listener.frameReceived(frame));
+            }
+
+            if (!buffer.hasRemaining()) {
+                releaseBuffer(buffer);
+                return;
+            }
+            // Keep the partial frame. The buffer grows toward the size its header claims only once the bytes
+            // received so far fill it, and goes back to a pooled one once frames fit in that again.
+            int needed = buffer.remaining() >= 4 ? 4 + buffer.getInt(buffer.position()) : BUFFER_SIZE;
+            int capacity = buffer.capacity();
+            if (needed > capacity && buffer.remaining() == capacity) {
+                capacity = (int) Math.min(needed, 2L * capacity);
+            } else if (needed <= BUFFER_SIZE) {
+                capacity = BUFFER_SIZE;
+            }
+            if (capacity != buffer.capacity()) {
+                ByteBuffer moved = capacity == BUFFER_SIZE ? acquireBuffer() : ByteBuffer.allocate(capacity);
+                moved.put(buffer);
+                releaseBuffer(buffer);
+                inbound = moved;
+            } else {
+                buffer.compact();
+                inbound = buffer;
+            }
+        }
+
+        /** Runs listener callbacks on the executor in arrival order, never two at once. */
+        private void dispatch(Callback callback) {
+            inbox.add(() -> {
+                try {
+                    callback.run();
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Error handling control frame from " + remoteAddress() + ": " + e);
+                    close();
+                }
+            });
+            drain();
+        }
+
+        private void drain() {
+            if (inbox.isEmpty() || !draining.compareAndSet(false, true)) {
+                return;
+            }
+            executor.execute(() -> {
+                Runnable next;
+                while ((next = inbox.poll()) != null) {
+                    next.run();
+                }
+                draining.set(false);
+                drain();
+            });
+        }
+    }
+
+    private interface Callback {
+        void run() throws IOException;
+    }
+}
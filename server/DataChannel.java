@@ -0,0 +1,555 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Long-lived, multiplexed data connection between a client or worker and the server.
+ *
+ * Every frame is {@code [byte type][int streamId][int length][payload]}. A stream carries the files
+ * of one job in one direction: OPEN(jobId, kind), then FILE(path, size) followed by DATA chunks for
+ * each file, then END (or ABORT). Chunks of different streams may be interleaved on the connection.
+ *
+ * DATA payloads are moved between the file and the socket with {@link FileChannel#transferTo} and
+ * {@link FileChannel#transferFrom}, so file contents are not copied through the Java heap. If both
+ * ends listed "deflate" in HELLO / HELLO_ACK, compressible files are sent deflated instead; the FILE
+ * frame names the codec used for that file.
+ */
+public class DataChannel implements Closeable {
+    public static final byte HELLO = 1;
+    public static final byte HELLO_ACK = 2;
+    public static final byte OPEN = 3;
+    public static final byte FILE = 4;
+    public static final byte DATA = 5;
+    public static final byte END = 6;
+    public static final byte ABORT = 7;
+
+    public static final String INPUT = "INPUT";
+    public static final String OUTPUT = "OUTPUT";
+
+    private static final int HEADER_SIZE = 9;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    // HELLO, OPEN and FILE payloads hold a few names and a path; nothing legitimate comes close to this.
+    private static final int MAX_HEADER_PAYLOAD = 8 * 1024;
+
+    private static final byte CODEC_NONE = 0;
+    private static final byte CODEC_DEFLATE = 1;
+    private static final String SUPPORTED_CODECS = "deflate";
+    private static final long MIN_COMPRESS_SIZE = 1024;
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "zip", "bz2", "xz", "zst", "7z", "rar", "jar", "png", "jpg", "jpeg", "gif", "webp",
+            "mp3", "mp4", "pdf", "parquet", "npz", "pkl"));
+    private static final byte[][] COMPRESSED_MAGIC = {
+            { 0x1f, (byte) 0x8b },
+            { 0x50, 0x4b, 0x03, 0x04 },
+            { 0x42, 0x5a, 0x68 },
+            { (byte) 0xfd, 0x37, 0x7a, 0x58, 0x5a, 0x00 },
+            { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd },
+            { (byte) 0x89, 0x50, 0x4e, 0x47 },
+            { (byte) 0xff, (byte) 0xd8, (byte) 0xff },
+            { 0x50, 0x41, 0x52, 0x31 } };
+
+    public interface Handler {
+        /**
+         * Whether to take a stream of {@code kind} for the job; a rejected stream's files are skipped and
+         * its end is not reported.
+         */
+        default boolean acceptStream(String jobId, String kind) {
+            return true;
+        }
+
+        /** Returns the file to write {@code path} of the stream into, or null to reject the stream. */
+        File openFile(String jobId, String kind, String path) throws IOException;
+
+        void streamFinished(String jobId, String kind, boolean complete);
+    }
+
+    public interface ProgressListener {
+        void progress(String jobId, String path, long transferred, long total);
+    }
+
+    private final SocketChannel channel;
+    private final Object writeLock = new Object();
+    private final ByteBuffer readHeader = ByteBuffer.allocate(HEADER_SIZE);
+    private final AtomicInteger nextStreamId = new AtomicInteger(1);
+    private volatile ProgressListener progressListener = (jobId, path, transferred, total) -> {
+    };
+    private String role;
+    private String identity;
+    private volatile boolean peerInflates;
+    private volatile boolean deflate = true;
+
+    public DataChannel(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    }
+
+    public static DataChannel connect(String host, int port, String role, String identity) throws IOException {
+        DataChannel dataChannel = new DataChannel(SocketChannel.open(new InetSocketAddress(host, port)));
+        dataChannel.role = role;
+        dataChannel.identity = identity;
+        dataChannel.writeFrame(HELLO, 0, encode(role, identity, SUPPORTED_CODECS));
+        byte type = dataChannel.readFrameHeader();
+        DataInputStream payload = dataChannel.readPayload(dataChannel.readHeader.getInt(5));
+        if (type != HELLO_ACK) {
+            dataChannel.close();
+            throw new IOException("Data connection was not accepted by the server");
+        }
+        if (payload.available() > 0) {
+            dataChannel.peerInflates = hasCodec(payload.readUTF(), "deflate");
+        }
+        return dataChannel;
+    }
+
+    public void readHello() throws IOException {
+        byte type = readFrameHeader();
+        DataInputStream payload = readPayload(readHeader.getInt(5));
+        if (type != HELLO) {
+            throw new IOException("Expected HELLO on data connection, got frame type " + type);
+        }
+        role = payload.readUTF();
+        identity = payload.readUTF();
+        if (payload.available() > 0) {
+            peerInflates = hasCodec(payload.readUTF(), "deflate");
+        }
+    }
+
+    public void acknowledge() throws IOException {
+        writeFrame(HELLO_ACK, 0, encode(peerInflates ? "deflate" : ""));
+    }
+
+    private static boolean hasCodec(String codecs, String codec) {
+        return Arrays.asList(codecs.split(",")).contains(codec);
+    }
+
+    public String getRole() {
+        return role;
+    }
+
+    public String getIdentity() {
+        return identity;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /** Whether to deflate the compressible files this end sends, when the peer can inflate them; on by default. */
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    /** Sends {@code files} as one stream and returns the number of bytes that went on the wire. */
+    public long sendFiles(String jobId, String kind, Map<String, File> files) throws IOException {
+        int streamId = nextStreamId.getAndIncrement();
+        long wireBytes = writeFrame(OPEN, streamId, encode(jobId, kind));
+        try {
+            for (Map.Entry<String, File> file : files.entrySet()) {
+                wireBytes += sendFile(streamId, jobId, file.getKey(), file.getValue());
+            }
+        } catch (IOException e) {
+            try {
+                writeFrame(ABORT, streamId, new byte[0]);
+            } catch (IOException ignored) {
+                // Connection is gone, the receiver sees the stream as incomplete anyway.
+            }
+            throw e;
+        }
+        return wireBytes + writeFrame(END, streamId, new byte[0]);
+    }
+
+    private long sendFile(int streamId, String jobId, String path, File file) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Path is not a file: " + file.getAbsolutePath());
+        }
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = source.size();
+            byte codec = deflate && peerInflates && isCompressible(file, source) ? CODEC_DEFLATE : CODEC_NONE;
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeUTF(path);
+            headerOut.writeLong(fileSize);
+            headerOut.writeByte(codec);
+            long wireBytes = writeFrame(FILE, streamId, header.toByteArray());
+            if (codec == CODEC_DEFLATE) {
+                return wireBytes + sendDeflated(streamId, jobId, path, source, fileSize);
+            }
+
+            long position = 0;
+            while (position < fileSize) {
+                int length = (int) Math.min(CHUNK_SIZE, fileSize - position);
+                synchronized (writeLock) {
+                    writeFully(header(DATA, streamId, length));
+                    long end = position + length;
+                    while (position < end) {
+                        long sent = source.transferTo(position, end - position, channel);
+                        if (sent <= 0 && position >= source.size()) {
+                            throw new IOException("File shrank while sending: " + file.getAbsolutePath());
+                        }
+                        position += sent;
+                    }
+                }
+                wireBytes += HEADER_SIZE + length;
+                progressListener.progress(jobId, path, position, fileSize);
+            }
+            return wireBytes;
+        }
+    }
+
+    private long sendDeflated(int streamId, String jobId, String path, FileChannel source, long fileSize)
+            throws IOException {
+        Deflater deflater = new Deflater();
+        ByteBuffer input = ByteBuffer.allocate(CHUNK_SIZE);
+        ByteBuffer output = ByteBuffer.allocate(CHUNK_SIZE);
+        long position = 0;
+        long wireBytes = 0;
+        try {
+            while (!deflater.finished()) {
+                if (deflater.needsInput() && position < fileSize) {
+                    input.clear();
+                    int read = source.read(input, position);
+                    if (read < 0) {
+                        throw new IOException("File shrank while sending: " + path);
+                    }
+                    position += read;
+                    input.flip();
+                    deflater.setInput(input);
+                    if (position >= fileSize) {
+                        deflater.finish();
+                    }
+                    progressListener.progress(jobId, path, position, fileSize);
+                }
+                deflater.deflate(output);
+                if ((!output.hasRemaining() || deflater.finished()) && output.position() > 0) {
+                    output.flip();
+                    wireBytes += writeFrame(DATA, streamId, output);
+                    output.clear();
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        return wireBytes;
+    }
+
+    private static boolean isCompressible(File file, FileChannel source) throws IOException {
+        if (source.size() < MIN_COMPRESS_SIZE) {
+            return false;
+        }
+        String name = file.getName().toLowerCase();
+        if (COMPRESSED_EXTENSIONS.contains(name.substring(name.lastIndexOf('.') + 1))) {
+            return false;
+        }
+        ByteBuffer head = ByteBuffer.allocate(8);
+        source.read(head, 0);
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (head.position() >= magic.length && Arrays.equals(Arrays.copyOf(head.array(), magic.length), magic)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long writeFrame(byte type, int streamId, byte[] payload) throws IOException {
+        return writeFrame(type, streamId, ByteBuffer.wrap(payload));
+    }
+
+    private long writeFrame(byte type, int streamId, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        synchronized (writeLock) {
+            writeFully(header(type, streamId, length), payload);
+        }
+        return HEADER_SIZE + length;
+    }
+
+    private static ByteBuffer header(byte type, int streamId, int length) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(type).putInt(streamId).putInt(length).flip();
+        return header;
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    public void readFrames(Handler handler) throws IOException {
+        Map<Integer, IncomingStream> streams = new HashMap<>();
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = readFrameHeader();
+                } catch (EOFException e) {
+                    return;
+                }
+                int streamId = readHeader.getInt(1);
+                int length = readHeader.getInt(5);
+                if (length < 0 || (type == DATA && length > CHUNK_SIZE)) {
+                    throw new IOException("Bad data frame length " + length + " for frame type " + type);
+                }
+                IncomingStream stream = streams.get(streamId);
+
+                switch (type) {
+                    case OPEN: {
+                        DataInputStream payload = readPayload(length);
+                        String jobId = payload.readUTF();
+                        String kind = payload.readUTF();
+                        if (handler.acceptStream(jobId, kind)) {
+                            streams.put(streamId, new IncomingStream(jobId, kind));
+                        }
+                        break;
+                    }
+                    case FILE: {
+                        DataInputStream payload = readPayload(length);
+                        String path = payload.readUTF();
+                        long size = payload.readLong();
+                        byte codec = payload.available() > 0 ? payload.readByte() : CODEC_NONE;
+                        if (stream != null) {
+                            stream.beginFile(handler, path, size, codec);
+                        }
+                        break;
+                    }
+                    case DATA:
+                        if (stream != null && stream.accepts(length) && stream.inflater != null) {
+                            ByteBuffer compressed = ByteBuffer.allocate(length);
+                            readFully(compressed);
+                            stream.inflate(compressed.flip());
+                            progressListener.progress(stream.jobId, stream.path, stream.position, stream.size);
+                        } else if (stream != null && stream.accepts(length)) {
+                            stream.transferFrom(channel, length);
+                            progressListener.progress(stream.jobId, stream.path, stream.position, stream.size);
+                        } else {
+                            skip(length);
+                        }
+                        break;
+                    case END:
+                    case ABORT:
+                        skip(length);
+                        if (stream != null) {
+                            streams.remove(streamId);
+                            boolean complete = stream.finish() && type == END;
+                            handler.streamFinished(stream.jobId, stream.kind, complete);
+                        }
+                        break;
+                    default:
+                        skip(length);
+                }
+            }
+        } finally {
+            for (IncomingStream stream : streams.values()) {
+                stream.finish();
+                handler.streamFinished(stream.jobId, stream.kind, false);
+            }
+        }
+    }
+
+    private byte readFrameHeader() throws IOException {
+        readHeader.clear();
+        readFully(readHeader);
+        return readHeader.get(0);
+    }
+
+    private DataInputStream readPayload(int length) throws IOException {
+        if (length < 0 || length > MAX_HEADER_PAYLOAD) {
+            throw new IOException("Bad data frame payload length " + length);
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(payload);
+        return new DataInputStream(new ByteArrayInputStream(payload.array()));
+    }
+
+    private void skip(int length) throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+        int remaining = length;
+        while (remaining > 0) {
+            scratch.clear().limit(Math.min(scratch.capacity(), remaining));
+            readFully(scratch);
+            remaining -= scratch.limit();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Data connection closed");
+            }
+        }
+    }
+
+    public static File resolve(File baseDir, String path) throws IOException {
+        File target = new File(baseDir, path).getCanonicalFile();
+        if (!target.toPath().startsWith(baseDir.getCanonicalFile().toPath())) {
+            throw new IOException("Refusing to write outside " + baseDir + ": " + path);
+        }
+        return target;
+    }
+
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            while (source.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static byte[] encode(String... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        for (String value : values) {
+            data.writeUTF(value);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static class IncomingStream {
+        final String jobId;
+        final String kind;
+        boolean rejected;
+        FileChannel file;
+        Inflater inflater;
+        ByteBuffer inflated;
+        String path;
+        long size;
+        long position;
+
+        IncomingStream(String jobId, String kind) {
+            this.jobId = jobId;
+            this.kind = kind;
+        }
+
+        void beginFile(Handler handler, String path, long size, byte codec) throws IOException {
+            closeFile();
+            this.path = path;
+            this.size = size;
+            this.position = 0;
+            if (rejected) {
+                return;
+            }
+            File target;
+            try {
+                target = handler.openFile(jobId, kind, path);
+            } catch (IOException e) {
+                System.out.println("Rejecting " + path + " for job " + jobId + ": " + e.getMessage());
+                target = null;
+            }
+            if (target == null) {
+                rejected = true;
+                return;
+            }
+            target.getParentFile().mkdirs();
+            file = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            if (codec == CODEC_DEFLATE) {
+                inflater = new Inflater();
+                if (inflated == null) {
+                    inflated = ByteBuffer.allocate(CHUNK_SIZE);
+                }
+            } else if (codec != CODEC_NONE) {
+                rejected = true;
+            }
+        }
+
+        boolean accepts(int length) {
+            if (file != null && inflater == null && length > size - position) {
+                rejected = true;
+            }
+            return file != null && !rejected;
+        }
+
+        void transferFrom(SocketChannel source, int length) throws IOException {
+            long end = position + length;
+            while (position < end) {
+                long received = file.transferFrom(source, position, end - position);
+                if (received <= 0) {
+                    throw new EOFException("Data connection closed in the middle of " + path);
+                }
+                position += received;
+            }
+        }
+
+        void inflate(ByteBuffer compressed) throws IOException {
+            inflater.setInput(compressed);
+            try {
+                while (!inflater.finished() && !inflater.needsInput()) {
+                    inflated.clear();
+                    if (inflater.inflate(inflated) == 0 && inflater.needsDictionary()) {
+                        rejected = true;
+                        return;
+                    }
+                    inflated.flip();
+                    if (inflated.remaining() > size - position) {
+                        rejected = true;
+                        return;
+                    }
+                    while (inflated.hasRemaining()) {
+                        position += file.write(inflated, position);
+                    }
+                }
+            } catch (DataFormatException e) {
+                rejected = true;
+            }
+        }
+
+        boolean finish() {
+            try {
+                closeFile();
+            } catch (IOException e) {
+                rejected = true;
+            }
+            return !rejected;
+        }
+
+        private void closeFile() throws IOException {
+            if (inflater != null) {
+                if (!inflater.finished()) {
+                    rejected = true;
+                }
+                inflater.end();
+                inflater = null;
+            }
+            if (file != null) {
+                file.close();
+                file = null;
+                if (position != size) {
+                    rejected = true;
+                }
+            }
+        }
+    }
+}
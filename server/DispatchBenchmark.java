@@ -0,0 +1,139 @@
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Times handing jobs to workers with 10, 100 and 1,000 workers connected, each with SLOTS slots and a
+ * share of the blobs the jobs read. It times a slot claimed on {@link IdleWorkers} and given back, with
+ * and without folding a run time into the worker's order, while half of all slots are busy. Then it
+ * times jobs going through a {@link JobScheduler} thread, from the queue to a worker and back to a free
+ * slot once reported done. Workers are stand-ins that drop what the scheduler sends them.
+ *
+ * Usage: java DispatchBenchmark [jobs]
+ */
+public class DispatchBenchmark {
+    private static final int SLOTS = 4;
+    private static final int HOLDERS = 3;
+    private static final long INPUT_BYTES = 4 << 20;
+
+    public static void main(String[] args) throws InterruptedException {
+        int jobs = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        System.out.println(String.format("%8s %12s %12s %14s", "workers", "claim+free", "claim+done",
+                "scheduler"));
+        for (int workers : new int[] {10, 100, 1000}) {
+            double release = measureIdleWorkers(workers, jobs, false);
+            double completed = measureIdleWorkers(workers, jobs, true);
+            double dispatched = measureScheduler(workers, jobs);
+            System.out.println(String.format("%8d %9.0f ns %9.0f ns %10.0f/s", workers, release, completed,
+                    dispatched));
+        }
+    }
+
+    /** Nanoseconds per claim of a slot and its release, or its completion when {@code complete}. */
+    static double measureIdleWorkers(int count, int operations, boolean complete) {
+        IdleWorkers idle = new IdleWorkers();
+        List<WorkerInfo> workers = workers(count);
+        for (WorkerInfo worker : workers) {
+            idle.setSlots(worker, SLOTS);
+        }
+        cacheBlobs(workers, idle::blobCached);
+        List<JobInfo> jobs = jobs(count, 1024);
+        for (int i = 0; i < count * SLOTS / 2; i++) {
+            idle.claim(job(count, -1 - i));
+        }
+
+        Random random = new Random(318);
+        long elapsed = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                JobInfo job = jobs.get(i % jobs.size());
+                WorkerInfo worker = idle.claim(job);
+                if (complete) {
+                    idle.completed(worker, job.id, 1000 + random.nextInt(1000));
+                } else {
+                    idle.release(worker, job.id);
+                }
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        return (double) elapsed / operations;
+    }
+
+    /** Jobs per second the scheduler thread starts, when each is reported done as soon as it is sent. */
+    static double measureScheduler(int count, int jobs) throws InterruptedException {
+        Map<String, WorkerInfo> workers = new ConcurrentHashMap<>();
+        JobScheduler scheduler = new JobScheduler(workers);
+        BlockingQueue<Object[]> assigned = new LinkedBlockingQueue<>();
+        scheduler.setAssignmentListener((job, worker) -> assigned.add(new Object[] {job, worker}));
+        List<WorkerInfo> stubs = workers(count);
+        for (WorkerInfo worker : stubs) {
+            workers.put(worker.id, worker);
+            scheduler.capacityChanged(worker, SLOTS);
+        }
+        cacheBlobs(stubs, (worker, hash) -> scheduler.blobsCached(worker, List.of(hash)));
+
+        // The scheduler logs every assignment; printing them would be most of what is timed.
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        long elapsed = 0;
+        try {
+            scheduler.start();
+            for (int round = 0; round < 3; round++) {
+                for (JobInfo job : jobs(count, jobs)) {
+                    scheduler.submit(job);
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < jobs; i++) {
+                    Object[] assignment = assigned.take();
+                    JobInfo job = (JobInfo) assignment[0];
+                    job.transition(JobState.PROCESSING, JobState.COMPLETED);
+                    scheduler.jobCompleted((WorkerInfo) assignment[1], job.id, 1000);
+                }
+                elapsed = System.nanoTime() - start;
+            }
+        } finally {
+            scheduler.shutdown();
+            System.setOut(out);
+        }
+        return jobs * 1e9 / elapsed;
+    }
+
+    private static List<WorkerInfo> workers(int count) {
+        List<WorkerInfo> workers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            workers.add(new WorkerInfo("worker" + i, null) {
+                @Override
+                void send(ControlFrame.Op op, String... args) {
+                }
+            });
+        }
+        return workers;
+    }
+
+    /** Caches blob i on HOLDERS workers from worker i on, so each job has a few workers holding its input. */
+    private static void cacheBlobs(List<WorkerInfo> workers, BiConsumer<WorkerInfo, String> cache) {
+        for (int blob = 0; blob < workers.size(); blob++) {
+            for (int i = 0; i < Math.min(HOLDERS, workers.size()); i++) {
+                cache.accept(workers.get((blob + i) % workers.size()), "blob" + blob);
+            }
+        }
+    }
+
+    private static List<JobInfo> jobs(int workers, int count) {
+        List<JobInfo> jobs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            jobs.add(job(workers, i));
+        }
+        return jobs;
+    }
+
+    private static JobInfo job(int workers, int id) {
+        JobInfo job = new JobInfo(String.valueOf(id), "user" + Math.floorMod(id, 10), null, null, null);
+        job.inputHashes.put("data/input.csv", "blob" + Math.floorMod(id, workers));
+        job.inputSizes.put("data/input.csv", INPUT_BYTES);
+        return job;
+    }
+}
@@ -0,0 +1,286 @@
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * The queue of jobs waiting for a slot, shared fairly between users.
+ *
+ * Each user has a queue of their own, ordered by priority and then by submission time. A job gains
+ * one priority level for every AGING_INTERVAL it waits, so a job is never starved by higher-priority
+ * jobs that keep arriving. Because every waiting job ages at the same rate the order between two
+ * jobs never changes, and the rank folds priority and age into one fixed number.
+ *
+ * With shortest-first ordering the rank also adds SHORTEST_FIRST_WEIGHT times the job's expected
+ * run time, so a job expected to run for E goes behind the shorter jobs of its user submitted up to
+ * SHORTEST_FIRST_WEIGHT * E after it, but not behind those submitted later. This is least-laxity
+ * ordering with each job due SHORTEST_FIRST_WEIGHT + 1 times its run time after it was submitted:
+ * short jobs overtake long ones, and a long job still starts once it has waited long enough. Users
+ * are then charged for each job in proportion to its expected run time, taking a job whose run time
+ * is not known yet as CHARGE_UNIT long, so what is shared fairly is slot time rather than job count.
+ * Otherwise a user whose short jobs all went first would hold most slots with the long ones later.
+ *
+ * Between users the queue uses stride scheduling. Every user has a pass value that grows by
+ * STRIDE / weight with each job they start, and the next job comes from the user with the lowest
+ * pass; over time each user starts jobs in proportion to their weight. A user who comes back from
+ * an empty queue, or from their cap, starts no lower than the pass of the last job started, so time
+ * spent away is not banked. A user running as many jobs as their cap allows sits out until one of
+ * them finishes. Jobs retried after their worker failed go ahead of everything else and are not
+ * charged again.
+ *
+ * Adding, removing and finding the next job take O(log n). All methods are synchronized; the
+ * scheduler thread is the only one that takes jobs out.
+ */
+public class FairShareQueue {
+    private static final long AGING_INTERVAL = 60000;
+    private static final long STRIDE = 1 << 20;
+    private static final long SHORTEST_FIRST_WEIGHT = 10;
+    private static final long CHARGE_UNIT = 30000;
+    private static final long MIN_CHARGE = 1000;
+
+    private static class Entry {
+        final JobInfo job;
+        final long rank;
+        final long sequence;
+
+        Entry(JobInfo job, long rank, long sequence) {
+            this.job = job;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Entry> BY_RANK = Comparator.<Entry>comparingLong(e -> e.rank)
+            .thenComparingLong(e -> e.sequence);
+
+    private class UserQueue {
+        final String username;
+        final TreeSet<Entry> jobs = new TreeSet<>(BY_RANK);
+        long pass;
+        int running;
+
+        UserQueue(String username) {
+            this.username = username;
+        }
+
+        int weight() {
+            return weights.getOrDefault(username, 1);
+        }
+
+        boolean underCap() {
+            int cap = maxRunning.getOrDefault(username, defaultMaxRunning);
+            return cap <= 0 || running < cap;
+        }
+
+        boolean eligible() {
+            return !jobs.isEmpty() && underCap();
+        }
+    }
+
+    private final Map<String, UserQueue> users = new HashMap<>();
+    private final TreeSet<UserQueue> active = new TreeSet<>(
+            Comparator.<UserQueue>comparingLong(u -> u.pass).thenComparing(u -> u.username));
+    private final TreeSet<Entry> retries = new TreeSet<>(BY_RANK);
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, UserQueue> runningJobs = new HashMap<>();
+    private final Map<String, Integer> weights = new HashMap<>();
+    private final Map<String, Integer> maxRunning = new HashMap<>();
+    private int defaultMaxRunning;
+    private boolean shortestFirst;
+    private int dispatchable;
+    private long virtualTime;
+    private long nextSequence;
+
+    /** Gives the user a share of {@code weight} and lets them run at most {@code cap} jobs; 0 means no cap. */
+    public synchronized void setShare(String username, int weight, int cap) {
+        UserQueue user = user(username);
+        deactivate(user);
+        weights.put(username, Math.max(1, weight));
+        maxRunning.put(username, cap);
+        activate(user);
+    }
+
+    /** Caps the running jobs of every user without a cap of their own; 0 means no cap. */
+    public synchronized void setDefaultMaxRunning(int cap) {
+        users.values().forEach(this::deactivate);
+        defaultMaxRunning = cap;
+        users.values().forEach(this::activate);
+    }
+
+    /**
+     * Orders each user's jobs by their expected run time as well as by priority and age. Applies to
+     * the jobs queued from then on.
+     */
+    public synchronized void setShortestFirst(boolean shortestFirst) {
+        this.shortestFirst = shortestFirst;
+    }
+
+    public synchronized void add(JobInfo job) {
+        if (entries.containsKey(job.id)) {
+            return;
+        }
+        UserQueue user = user(job.username);
+        Entry entry = new Entry(job, rank(job), nextSequence++);
+        entries.put(job.id, entry);
+        deactivate(user);
+        user.jobs.add(entry);
+        activate(user);
+    }
+
+    /** Queues a job whose run was cut short ahead of the jobs that have not run yet. */
+    public synchronized void addRetry(JobInfo job) {
+        if (entries.containsKey(job.id)) {
+            return;
+        }
+        Entry entry = new Entry(job, 0, nextSequence++);
+        entries.put(job.id, entry);
+        retries.add(entry);
+        dispatchable++;
+    }
+
+    /** Returns the job to start next, or null if every queued job belongs to a user at their cap. */
+    public synchronized JobInfo peek() {
+        if (!retries.isEmpty()) {
+            return retries.first().job;
+        }
+        return active.isEmpty() ? null : active.first().jobs.first().job;
+    }
+
+    public synchronized boolean remove(JobInfo job) {
+        Entry entry = entries.remove(job.id);
+        if (entry == null) {
+            return false;
+        }
+        if (retries.remove(entry)) {
+            dispatchable--;
+            return true;
+        }
+        UserQueue user = users.get(job.username);
+        deactivate(user);
+        user.jobs.remove(entry);
+        activate(user);
+        return true;
+    }
+
+    /** Takes the job off the queue and charges its user for it; it counts against their cap until finished. */
+    public synchronized void started(JobInfo job) {
+        Entry entry = entries.get(job.id);
+        boolean retry = entry != null && retries.contains(entry);
+        remove(job);
+        UserQueue user = user(job.username);
+        deactivate(user);
+        if (!retry) {
+            virtualTime = Math.max(virtualTime, user.pass);
+            user.pass += charge(job) / user.weight();
+        }
+        user.running++;
+        runningJobs.put(job.id, user);
+        activate(user);
+    }
+
+    public synchronized void finished(JobInfo job) {
+        UserQueue user = runningJobs.remove(job.id);
+        if (user == null) {
+            return;
+        }
+        deactivate(user);
+        user.running--;
+        activate(user);
+    }
+
+    /**
+     * Gives the queued jobs that had no expected run time one from {@code estimate}, which returns -1
+     * where it still has none, and moves them to their place in the shortest-first order.
+     */
+    public synchronized void updateExpectedRuntimes(ToLongFunction<JobInfo> estimate) {
+        if (!shortestFirst) {
+            return;
+        }
+        for (UserQueue user : users.values()) {
+            List<Entry> updated = new ArrayList<>();
+            for (Entry entry : user.jobs) {
+                if (entry.job.expectedRuntime < 0) {
+                    entry.job.expectedRuntime = estimate.applyAsLong(entry.job);
+                    if (entry.job.expectedRuntime >= 0) {
+                        updated.add(entry);
+                    }
+                }
+            }
+            if (updated.isEmpty()) {
+                continue;
+            }
+            deactivate(user);
+            for (Entry entry : updated) {
+                Entry moved = new Entry(entry.job, rank(entry.job), entry.sequence);
+                user.jobs.remove(entry);
+                user.jobs.add(moved);
+                entries.put(entry.job.id, moved);
+            }
+            activate(user);
+        }
+    }
+
+    /** Whether the user of a job taken off the queue may start another job without going over their cap. */
+    public synchronized boolean underCap(JobInfo job) {
+        return user(job.username).underCap();
+    }
+
+    /** Jobs that could start now; those of users at their cap are not counted. */
+    public synchronized int dispatchableCount() {
+        return dispatchable;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /** How long the longest waiting of the jobs next in line for each user has waited. */
+    public synchronized long oldestWait(long now) {
+        long oldest = now;
+        if (!retries.isEmpty()) {
+            oldest = retries.first().job.queuedTime;
+        }
+        for (UserQueue user : active) {
+            oldest = Math.min(oldest, user.jobs.first().job.queuedTime);
+        }
+        return now - oldest;
+    }
+
+    private long rank(JobInfo job) {
+        long rank = job.queuedTime - job.priority * AGING_INTERVAL;
+        if (shortestFirst) {
+            // A script not seen often enough yet goes as if short, which is also how its run time is learned.
+            rank += SHORTEST_FIRST_WEIGHT * Math.max(job.expectedRuntime, 0);
+        }
+        return rank;
+    }
+
+    private long charge(JobInfo job) {
+        if (!shortestFirst) {
+            return STRIDE;
+        }
+        long runtime = job.expectedRuntime >= 0 ? Math.max(job.expectedRuntime, MIN_CHARGE) : CHARGE_UNIT;
+        return STRIDE * runtime / CHARGE_UNIT;
+    }
+
+    private UserQueue user(String username) {
+        return users.computeIfAbsent(username, UserQueue::new);
+    }
+
+    private void deactivate(UserQueue user) {
+        if (active.remove(user)) {
+            dispatchable -= user.jobs.size();
+        }
+    }
+
+    private void activate(UserQueue user) {
+        if (!user.eligible()) {
+            return;
+        }
+        user.pass = Math.max(user.pass, virtualTime);
+        active.add(user);
+        dispatchable += user.jobs.size();
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Workers with at least one free slot, ordered by average execution time, plus an index from blob
+ * hash to the workers that have it cached.
+ *
+ * A job goes to the free worker with the best score: the share of the job's input bytes it already
+ * caches, less LOAD_WEIGHT times the share of its slots in use. A worker holding all of the inputs
+ * wins unless it is much busier than the fastest free worker, which is the fallback. Finding that
+ * worker takes O(log W) for the fastest one plus a walk over the holders of the job's own blobs, and
+ * never a scan of every worker. The slot itself is taken with a
+ * CAS on the worker's free-slot counter. A worker's entry in the ordered set is only changed while
+ * holding that worker's lock, so its ordering key never changes while it is in the set.
+ */
+public class IdleWorkers {
+    private static final double LOAD_WEIGHT = 0.5;
+    private static final double LOCAL_FRACTION = 0.5;
+    private static final long MIN_LOCAL_BYTES = 1 << 20;
+
+    private final ConcurrentSkipListSet<WorkerInfo> idle = new ConcurrentSkipListSet<>(
+            Comparator.comparingDouble((WorkerInfo w) -> w.averageExecutionTime).thenComparing(w -> w.id));
+    private final Map<String, Set<WorkerInfo>> blobHolders = new ConcurrentHashMap<>();
+
+    /** Claims a slot for the job on the best free worker, or returns null if every worker is busy. */
+    public WorkerInfo claim(JobInfo job) {
+        return claim(job, false);
+    }
+
+    /**
+     * Claims a slot for the job on the best free worker; with {@code localOnly}, only on one that caches
+     * at least LOCAL_FRACTION of its input bytes. Returns null if there is no such worker.
+     */
+    public WorkerInfo claim(JobInfo job, boolean localOnly) {
+        Map<WorkerInfo, Long> cached = cachedBytes(job);
+        long bytes = RuntimeEstimates.inputBytes(job);
+        while (true) {
+            WorkerInfo best = localOnly ? null : first();
+            double bestScore = best != null ? score(best, 0, bytes) : Double.NEGATIVE_INFINITY;
+            for (Map.Entry<WorkerInfo, Long> holder : cached.entrySet()) {
+                WorkerInfo worker = holder.getKey();
+                if (!worker.hasFreeSlot() || (localOnly && holder.getValue() < LOCAL_FRACTION * bytes)) {
+                    continue;
+                }
+                double score = score(worker, holder.getValue(), bytes);
+                if (score > bestScore || (score == bestScore && idle.comparator().compare(worker, best) < 0)) {
+                    best = worker;
+                    bestScore = score;
+                }
+            }
+            if (best == null) {
+                return null;
+            }
+            if (claim(best, job.id)) {
+                return best;
+            }
+        }
+    }
+
+    /**
+     * Whether a worker that could run the job, busy or not, caches at least LOCAL_FRACTION of its input
+     * bytes; jobs with less than MIN_LOCAL_BYTES of input are never worth waiting for one.
+     */
+    public boolean hasLocalWorker(JobInfo job) {
+        long bytes = RuntimeEstimates.inputBytes(job);
+        if (bytes < MIN_LOCAL_BYTES) {
+            return false;
+        }
+        for (Map.Entry<WorkerInfo, Long> holder : cachedBytes(job).entrySet()) {
+            WorkerInfo worker = holder.getKey();
+            if (worker.slots > 0 && !worker.draining && holder.getValue() >= LOCAL_FRACTION * bytes) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasFreeWorker() {
+        return !idle.isEmpty();
+    }
+
+    /** Claims a slot for a second attempt of the job on the fastest free worker other than {@code busy}. */
+    public WorkerInfo claimExcept(JobInfo job, WorkerInfo busy) {
+        for (WorkerInfo worker : idle) {
+            if (worker != busy && claim(worker, job.id)) {
+                return worker;
+            }
+        }
+        return null;
+    }
+
+    /** Releases the job's slot without counting the job as run; returns false if it held none. */
+    public boolean release(WorkerInfo worker, String jobId) {
+        synchronized (worker) {
+            if (!worker.releaseSlot(jobId)) {
+                return false;
+            }
+            refresh(worker);
+            return true;
+        }
+    }
+
+    /** Releases the job's slot and folds its run time into the worker's ordering. */
+    public boolean completed(WorkerInfo worker, String jobId, long executionTime) {
+        synchronized (worker) {
+            if (!worker.releaseSlot(jobId)) {
+                return false;
+            }
+            idle.remove(worker);
+            worker.updateMetrics(executionTime);
+            refresh(worker);
+            return true;
+        }
+    }
+
+    public void setSlots(WorkerInfo worker, int slots) {
+        synchronized (worker) {
+            worker.setSlots(slots);
+            refresh(worker);
+        }
+    }
+
+    public void drain(WorkerInfo worker) {
+        synchronized (worker) {
+            worker.draining = true;
+            idle.remove(worker);
+        }
+    }
+
+    public void remove(WorkerInfo worker) {
+        synchronized (worker) {
+            idle.remove(worker);
+            worker.slots = 0;
+            worker.freeSlots.set(0);
+        }
+        for (String hash : worker.cachedBlobs) {
+            blobsEvicted(worker, hash);
+        }
+    }
+
+    public void blobCached(WorkerInfo worker, String hash) {
+        worker.cachedBlobs.add(hash);
+        blobHolders.computeIfAbsent(hash, k -> ConcurrentHashMap.newKeySet()).add(worker);
+    }
+
+    public void blobsEvicted(WorkerInfo worker, String hash) {
+        worker.cachedBlobs.remove(hash);
+        blobHolders.computeIfPresent(hash, (k, holders) -> {
+            holders.remove(worker);
+            return holders.isEmpty() ? null : holders;
+        });
+    }
+
+    private boolean claim(WorkerInfo worker, String jobId) {
+        synchronized (worker) {
+            boolean claimed = worker.claimSlot(jobId);
+            refresh(worker);
+            return claimed;
+        }
+    }
+
+    /** Puts the worker in the set if it has a free slot and takes it out if not; caller holds its lock. */
+    private void refresh(WorkerInfo worker) {
+        if (worker.hasFreeSlot()) {
+            idle.add(worker);
+        } else {
+            idle.remove(worker);
+        }
+    }
+
+    private WorkerInfo first() {
+        try {
+            return idle.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    private static double score(WorkerInfo worker, long cachedBytes, long bytes) {
+        int slots = Math.max(worker.slots, 1);
+        double load = (double) (slots - worker.freeSlots.get()) / slots;
+        return (bytes > 0 ? (double) cachedBytes / bytes : 0) - LOAD_WEIGHT * load;
+    }
+
+    /** The bytes of the job's inputs each worker holding any of them has cached. */
+    private Map<WorkerInfo, Long> cachedBytes(JobInfo job) {
+        Map<WorkerInfo, Long> cachedBytes = new HashMap<>();
+        for (Map.Entry<String, String> file : job.inputHashes.entrySet()) {
+            Set<WorkerInfo> holders = blobHolders.get(file.getValue());
+            if (holders == null) {
+                continue;
+            }
+            for (WorkerInfo worker : holders) {
+                cachedBytes.merge(worker, job.inputSizes.getOrDefault(file.getKey(), 0L), Long::sum);
+            }
+        }
+        return cachedBytes;
+    }
+}
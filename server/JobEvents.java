@@ -0,0 +1,86 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Who wants to hear about which jobs. A subscriber follows single jobs or everything a user submits;
+ * following a split job or a batch also covers its shards. Subscriptions to a job end when it
+ * finishes, those to a user when the subscriber unsubscribes or goes away.
+ */
+public class JobEvents {
+    public interface Subscriber {
+        void jobChanged(String jobId, String status);
+    }
+
+    private final Map<String, Set<Subscriber>> byJob = new ConcurrentHashMap<>();
+    private final Map<String, Set<Subscriber>> byUser = new ConcurrentHashMap<>();
+    private final Map<Subscriber, Set<String>> jobsOf = new ConcurrentHashMap<>();
+    private final Map<Subscriber, Set<String>> usersOf = new ConcurrentHashMap<>();
+
+    public void subscribeJob(String jobId, Subscriber subscriber) {
+        add(byJob, jobsOf, jobId, subscriber);
+    }
+
+    public void subscribeUser(String username, Subscriber subscriber) {
+        add(byUser, usersOf, username, subscriber);
+    }
+
+    public void unsubscribeJob(String jobId, Subscriber subscriber) {
+        remove(byJob, jobsOf, jobId, subscriber);
+    }
+
+    public void unsubscribeUser(String username, Subscriber subscriber) {
+        remove(byUser, usersOf, username, subscriber);
+    }
+
+    public void unsubscribeAll(Subscriber subscriber) {
+        for (String jobId : jobsOf.getOrDefault(subscriber, Collections.emptySet())) {
+            remove(byJob, jobsOf, jobId, subscriber);
+        }
+        for (String username : usersOf.getOrDefault(subscriber, Collections.emptySet())) {
+            remove(byUser, usersOf, username, subscriber);
+        }
+    }
+
+    /** Tells everyone following the job, its parent or its owner that the job is now in {@code state}. */
+    public void publish(JobInfo job, JobState state) {
+        Set<Subscriber> subscribers = new HashSet<>();
+        subscribers.addAll(byJob.getOrDefault(job.id, Collections.emptySet()));
+        if (job.isShard()) {
+            subscribers.addAll(byJob.getOrDefault(job.parent.id, Collections.emptySet()));
+        }
+        if (job.username != null) {
+            subscribers.addAll(byUser.getOrDefault(job.username, Collections.emptySet()));
+        }
+        if (subscribers.isEmpty()) {
+            return;
+        }
+
+        for (Subscriber subscriber : subscribers) {
+            subscriber.jobChanged(job.id, state.name());
+        }
+        if (!job.isShard() && state.isFinished()) {
+            Set<Subscriber> following = byJob.remove(job.id);
+            if (following != null) {
+                following.forEach(subscriber -> remove(byJob, jobsOf, job.id, subscriber));
+            }
+        }
+    }
+
+    private static void add(Map<String, Set<Subscriber>> byKey, Map<Subscriber, Set<String>> keysOf, String key,
+            Subscriber subscriber) {
+        byKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(subscriber);
+        keysOf.computeIfAbsent(subscriber, s -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    private static void remove(Map<String, Set<Subscriber>> byKey, Map<Subscriber, Set<String>> keysOf, String key,
+            Subscriber subscriber) {
+        byKey.computeIfPresent(key, (k, subscribers) -> {
+            subscribers.remove(subscriber);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+        keysOf.computeIfPresent(subscriber, (s, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+}
@@ -0,0 +1,327 @@
+import java.io.*;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * History of finished jobs. The most recent jobs are kept in memory, bounded by count and age; older
+ * jobs are moved to an append-only archive on disk so memory stays flat however many jobs the
+ * server has run.
+ *
+ * The archive holds one journal-format record per job. Two indexes point into it: one file per
+ * bucket of job ids and one per user. A bucket holds fixed-width (id hash, offset) records, sorted by
+ * hash except for the ones appended since it was last sorted, so finding a job is a binary search
+ * plus a scan of that short tail. A user's file lists the offsets of their jobs, oldest first, and is
+ * read one job at a time. Nothing about the archive has to be held in memory.
+ */
+public class JobHistory {
+    private static final String ARCHIVE_FILE = "archive.log";
+    private static final int ID_BUCKETS = 256;
+    // A bucket is [long sorted record count] then [long id hash][long offset] records.
+    private static final int BUCKET_HEADER = 8;
+    private static final int ID_RECORD = 16;
+    private static final int MIN_UNSORTED = 256;
+
+    private final File idIndex;
+    private final File userIndex;
+    private final int maxJobs;
+    private final long maxAge;
+    private final LinkedHashMap<String, JobInfo> recent = new LinkedHashMap<>();
+    private final Set<File> unsyncedIndexes = new HashSet<>();
+    private FileChannel archive;
+
+    public JobHistory(File directory, int maxJobs, long maxAge) throws IOException {
+        this.idIndex = new File(directory, "ids");
+        this.userIndex = new File(directory, "users");
+        this.maxJobs = maxJobs;
+        this.maxAge = maxAge;
+        idIndex.mkdirs();
+        userIndex.mkdirs();
+        archive = FileChannel.open(new File(directory, ARCHIVE_FILE).toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        archive.position(archive.size());
+    }
+
+    public synchronized void put(JobInfo job) {
+        recent.remove(job.id);
+        recent.put(job.id, job);
+
+        long cutoff = System.currentTimeMillis() - maxAge;
+        Iterator<JobInfo> oldest = recent.values().iterator();
+        while (oldest.hasNext()) {
+            JobInfo eldest = oldest.next();
+            if (recent.size() <= maxJobs && eldest.endTime >= cutoff) {
+                break;
+            }
+            try {
+                archive(eldest);
+                oldest.remove();
+            } catch (IOException e) {
+                System.out.println("Error archiving job " + eldest.id + ": " + e.getMessage());
+                break;
+            }
+        }
+    }
+
+    /** Returns the job from memory or, failing that, from the archive. */
+    public synchronized JobInfo get(String jobId) {
+        JobInfo job = recent.get(jobId);
+        if (job != null) {
+            return job;
+        }
+        try {
+            long offset = archivedOffset(jobId);
+            return offset < 0 ? null : load(readLine(offset));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading archived job " + jobId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Passes each finished job of the user to {@code consumer}, oldest first, leaving out shards and the
+     * jobs of a batch, which come with their parent. Archived jobs are read one at a time.
+     */
+    public synchronized void forEachJobOf(String username, Consumer<JobInfo> consumer) {
+        File index = userFile(username);
+        if (index.isFile()) {
+            try (BufferedReader reader = Files.newBufferedReader(index.toPath(), StandardCharsets.UTF_8)) {
+                String entry;
+                while ((entry = reader.readLine()) != null) {
+                    String line = readLine(Long.parseLong(entry));
+                    // A job the journal brought back into memory after a restart is listed there instead.
+                    if (!JobJournal.hasParent(line) && !recent.containsKey(JobJournal.jobIdOf(line))) {
+                        consumer.accept(load(line));
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error reading archived jobs of " + username + ": " + e.getMessage());
+            }
+        }
+        for (JobInfo job : recent.values()) {
+            if (username.equals(job.username) && !job.isShard()) {
+                consumer.accept(job);
+            }
+        }
+    }
+
+    /** Jobs still held in memory; archived jobs are already durable and need no snapshot. */
+    public synchronized List<JobInfo> recentJobs() {
+        return new ArrayList<>(recent.values());
+    }
+
+    /** Forces archived records and their index entries to disk, so the journal can safely drop them. */
+    public synchronized void sync() throws IOException {
+        archive.force(false);
+        for (File index : unsyncedIndexes) {
+            try (FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(false);
+            }
+        }
+        unsyncedIndexes.clear();
+    }
+
+    private void archive(JobInfo job) throws IOException {
+        if (archivedOffset(job.id) >= 0) {
+            // Archived before a restart brought it back from the journal; a finished job does not change.
+            return;
+        }
+        long offset = archive.size();
+        write(archive, JobJournal.encodeJob("ARCHIVED", job) + "\n");
+        appendId(job.id, offset);
+        if (job.username != null) {
+            append(userFile(job.username), offset + "\n");
+        }
+    }
+
+    /** Returns the offset the job was last archived at, or -1 if it never was. */
+    private long archivedOffset(String jobId) throws IOException {
+        File bucket = idFile(jobId);
+        if (!bucket.isFile()) {
+            return -1;
+        }
+        long hash = hash(jobId);
+        try (FileChannel index = FileChannel.open(bucket.toPath(), StandardOpenOption.READ)) {
+            long count = (index.size() - BUCKET_HEADER) / ID_RECORD;
+            long sorted = Math.min(readLong(index, 0), count);
+            // An entry can be of another id with the same hash, so each is checked against its record,
+            // the newest first.
+            ByteBuffer unsorted = ByteBuffer.allocate((int) ((count - sorted) * ID_RECORD));
+            readFully(index, unsorted, recordPosition(sorted));
+            for (int i = unsorted.capacity() - ID_RECORD; i >= 0; i -= ID_RECORD) {
+                long offset = unsorted.getLong(i + 8);
+                if (unsorted.getLong(i) == hash && jobId.equals(JobJournal.jobIdOf(readLine(offset)))) {
+                    return offset;
+                }
+            }
+            long low = 0;
+            long high = sorted;
+            while (low < high) {
+                long middle = (low + high) >>> 1;
+                if (readLong(index, recordPosition(middle)) <= hash) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            for (long i = low - 1; i >= 0 && readLong(index, recordPosition(i)) == hash; i--) {
+                long offset = matchingOffset(index, i, hash, jobId);
+                if (offset >= 0) {
+                    return offset;
+                }
+            }
+            return -1;
+        }
+    }
+
+    /** The archive offset of bucket record {@code i} if it is of {@code jobId}, or -1. */
+    private long matchingOffset(FileChannel index, long i, long hash, String jobId) throws IOException {
+        if (readLong(index, recordPosition(i)) != hash) {
+            return -1;
+        }
+        long offset = readLong(index, recordPosition(i) + 8);
+        return jobId.equals(JobJournal.jobIdOf(readLine(offset))) ? offset : -1;
+    }
+
+    /**
+     * Appends the job's entry to its bucket, and sorts the bucket once the entries appended since it
+     * was last sorted number more than a sixteenth of it, so the tail a lookup scans stays short.
+     */
+    private void appendId(String jobId, long offset) throws IOException {
+        File bucket = idFile(jobId);
+        unsyncedIndexes.add(bucket);
+        long count;
+        long sorted;
+        try (FileChannel index = FileChannel.open(bucket.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (index.size() < BUCKET_HEADER) {
+                writeFully(index, ByteBuffer.allocate(BUCKET_HEADER).putLong(0).flip(), 0);
+            }
+            count = (index.size() - BUCKET_HEADER) / ID_RECORD;
+            writeFully(index, ByteBuffer.allocate(ID_RECORD).putLong(hash(jobId)).putLong(offset).flip(),
+                    recordPosition(count));
+            count++;
+            sorted = readLong(index, 0);
+        }
+        if (count - sorted >= Math.max(MIN_UNSORTED, sorted / 16)) {
+            sortBucket(bucket, count);
+        }
+    }
+
+    /** Rewrites the bucket sorted by hash; entries of the same hash keep their order, oldest first. */
+    private void sortBucket(File bucket, long count) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate((int) (count * ID_RECORD));
+        try (FileChannel index = FileChannel.open(bucket.toPath(), StandardOpenOption.READ)) {
+            readFully(index, records, BUCKET_HEADER);
+        }
+        records.flip();
+        long[][] entries = new long[(int) count][];
+        for (int i = 0; i < count; i++) {
+            entries[i] = new long[] {records.getLong(), records.getLong()};
+        }
+        Arrays.sort(entries, Comparator.comparingLong(entry -> entry[0]));
+
+        ByteBuffer sorted = ByteBuffer.allocate(BUCKET_HEADER + (int) count * ID_RECORD).putLong(count);
+        for (long[] entry : entries) {
+            sorted.putLong(entry[0]).putLong(entry[1]);
+        }
+        File temp = new File(bucket.getPath() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            writeFully(out, sorted.flip(), 0);
+            out.force(false);
+        }
+        Files.move(temp.toPath(), bucket.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private JobInfo load(String line) throws IOException {
+        List<String> childIds = new ArrayList<>();
+        JobInfo job = JobJournal.decodeJob(line, childIds);
+        for (String childId : childIds) {
+            JobInfo child = get(childId);
+            if (child != null) {
+                child.parent = job;
+                job.children.add(child);
+            }
+        }
+        return job;
+    }
+
+    private String readLine(long offset) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long position = offset;
+        while (archive.read(buffer, position) > 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    return line.toString(StandardCharsets.UTF_8);
+                }
+                line.write(b);
+            }
+            position += buffer.limit();
+            buffer.clear();
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private File idFile(String jobId) {
+        return new File(idIndex, String.format("%02x.ids", Long.remainderUnsigned(hash(jobId), ID_BUCKETS)));
+    }
+
+    /** 64-bit FNV-1a hash of the id's UTF-8 bytes. */
+    private static long hash(String jobId) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : jobId.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static long recordPosition(long i) {
+        return BUCKET_HEADER + i * ID_RECORD;
+    }
+
+    private static long readLong(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        readFully(channel, buffer, position);
+        return buffer.getLong(0);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Job index ends at " + (position + buffer.position()));
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private File userFile(String username) {
+        return new File(userIndex, URLEncoder.encode(username, StandardCharsets.UTF_8) + ".idx");
+    }
+
+    private void append(File file, String text) throws IOException {
+        unsyncedIndexes.add(file);
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void write(FileChannel channel, String text) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+}
@@ -1,18 +1,47 @@
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class JobInfo {
+    /** Told about every state change of every job, on the thread that made it. */
+    public interface TransitionListener {
+        void transitioned(JobInfo job, JobState from, JobState to);
+    }
+
+    private static final List<TransitionListener> transitionListeners = new CopyOnWriteArrayList<>();
+
     public String id;
     public String username;
-    public String status;
+    private final AtomicReference<JobState> state = new AtomicReference<>(JobState.PENDING);
     public long startTime;
+    public long queuedTime;
     public long endTime;
     public long executionTime;
     public String cost;
     public String assignedWorkerId;
+    public volatile String speculativeWorkerId;
+    public long speculativeStartTime;
+    public long speculativeTime;
+    private final AtomicReference<String> resultWorkerId = new AtomicReference<>();
     public String pythonPath;
     public String dataFolder;
     public String outputFolder;
     public int retryCount;
+    public int priority;
+    public long expectedRuntime = -1;
+    public long localityDeadline;
+    public JobInfo parent;
+    public List<JobInfo> children = new ArrayList<>();
+    public boolean batch;
+    public List<String> dataFiles = new ArrayList<>();
+    public int requestedShards;
+    public volatile boolean inputsStaged;
+    public Map<String, String> inputHashes = new LinkedHashMap<>();
+    public Map<String, Long> inputSizes = new LinkedHashMap<>();
 
     public JobInfo(String id, String username, String pythonPath, String dataFolder, String outputFolder) {
         this.id = id;
@@ -20,7 +49,6 @@ public class JobInfo {
         this.pythonPath = pythonPath;
         this.dataFolder = dataFolder;
         this.outputFolder = outputFolder;
-        this.status = "PENDING";
         this.startTime = System.currentTimeMillis();
         this.endTime = -1;
         this.executionTime = 0;
@@ -28,4 +56,114 @@ public class JobInfo {
         this.assignedWorkerId = null;
         this.retryCount = 0;
     }
+
+    public static void addTransitionListener(TransitionListener listener) {
+        transitionListeners.add(listener);
+    }
+
+    /** Stops telling {@code listener} about state changes; whoever added a listener removes it when done. */
+    public static void removeTransitionListener(TransitionListener listener) {
+        transitionListeners.remove(listener);
+    }
+
+    public JobState state() {
+        return state.get();
+    }
+
+    /**
+     * Moves the job from {@code from} to {@code to} if it is still in {@code from}. Of two threads
+     * racing to move the same job, say a cancel and a completion, exactly one succeeds.
+     */
+    public boolean transition(JobState from, JobState to) {
+        if (!from.canBecome(to)) {
+            throw new IllegalStateException("Job " + id + " cannot go from " + from + " to " + to);
+        }
+        if (!state.compareAndSet(from, to)) {
+            return false;
+        }
+        for (TransitionListener listener : transitionListeners) {
+            listener.transitioned(this, from, to);
+        }
+        return true;
+    }
+
+    /** Moves the job to {@code to} from whatever state it is in; returns that state, or null if it cannot. */
+    public JobState moveTo(JobState to) {
+        while (true) {
+            JobState current = state.get();
+            if (!current.canBecome(to)) {
+                return null;
+            }
+            if (transition(current, to)) {
+                return current;
+            }
+        }
+    }
+
+    /** Sets the state read back from the journal, without a transition. */
+    public void restore(JobState state) {
+        this.state.set(state);
+    }
+
+    public boolean runsOn(String workerId) {
+        return workerId.equals(assignedWorkerId) || workerId.equals(speculativeWorkerId);
+    }
+
+    /** Of the workers running the job, the first to deliver a result keeps it; the others' are dropped. */
+    public boolean claimResult(String workerId) {
+        return resultWorkerId.compareAndSet(null, workerId) || workerId.equals(resultWorkerId.get());
+    }
+
+    public boolean holdsResult(String workerId) {
+        return workerId.equals(resultWorkerId.get());
+    }
+
+    /** Starts a second attempt of the running job on another worker. */
+    public synchronized void speculate(String workerId) {
+        speculativeWorkerId = workerId;
+        speculativeStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Makes the attempt on {@code workerId} the one the job was run by; the time the other attempt ran is
+     * counted as speculative. Returns the worker of that other attempt, or null if there was none.
+     */
+    public synchronized String winAttempt(String workerId) {
+        String loser = speculativeWorkerId;
+        if (loser == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (workerId.equals(loser)) {
+            loser = assignedWorkerId;
+            speculativeTime += now - startTime;
+            assignedWorkerId = workerId;
+            startTime = speculativeStartTime;
+        } else {
+            speculativeTime += now - speculativeStartTime;
+        }
+        speculativeWorkerId = null;
+        return loser;
+    }
+
+    /**
+     * Ends the attempt on {@code workerId} without a result. Returns true if another attempt is still
+     * running, which carries on as the job's only one.
+     */
+    public synchronized boolean dropAttempt(String workerId) {
+        resultWorkerId.compareAndSet(workerId, null);
+        if (speculativeWorkerId == null || !runsOn(workerId)) {
+            return false;
+        }
+        winAttempt(workerId.equals(assignedWorkerId) ? speculativeWorkerId : assignedWorkerId);
+        return true;
+    }
+
+    public boolean isSplit() {
+        return !children.isEmpty();
+    }
+
+    public boolean isShard() {
+        return parent != null;
+    }
 }
\ No newline at end of file
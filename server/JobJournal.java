@@ -0,0 +1,340 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Append-only journal of user registrations and job state changes, so the server can restart
+ * without losing queued jobs or bills.
+ *
+ * Each record is one line holding the full state of a user or job, so replaying a record is an
+ * idempotent upsert. A single writer thread drains every record queued while the previous fsync was
+ * running and commits them with one write and one fsync (group commit). Every SNAPSHOT_INTERVAL
+ * records the writer switches to a new journal file, writes a snapshot of the whole state and
+ * deletes the journal files the snapshot covers. Recovery loads the snapshot and replays the newer
+ * journal files on top of it.
+ */
+public class JobJournal implements Runnable {
+    private static final String SNAPSHOT_FILE = "snapshot";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+    private static final int SNAPSHOT_INTERVAL = 10000;
+
+    private final File directory;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    private Supplier<List<String>> snapshotSource = Collections::emptyList;
+    private FileChannel journal;
+    private long generation;
+    private int recordsSinceSnapshot;
+
+    private static class Record {
+        final String line;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        Record(String line) {
+            this.line = line;
+        }
+    }
+
+    public static class Recovery {
+        public final Map<String, UserInfo> users = new LinkedHashMap<>();
+        public final Map<String, JobInfo> jobs = new LinkedHashMap<>();
+    }
+
+    public JobJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /** Loads the latest snapshot and replays the journal written after it. */
+    public Recovery recover() throws IOException {
+        directory.mkdirs();
+        Recovery recovery = new Recovery();
+        Map<String, String> parents = new HashMap<>();
+
+        File snapshot = new File(directory, SNAPSHOT_FILE);
+        if (snapshot.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(snapshot, StandardCharsets.UTF_8))) {
+                String header = reader.readLine();
+                generation = header != null ? Long.parseLong(header.split("\t")[1]) : 0;
+                replay(reader, recovery, parents);
+            }
+        }
+
+        for (File file : journalFiles()) {
+            if (generationOf(file) < generation) {
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+                replay(reader, recovery, parents);
+            }
+            generation = Math.max(generation, generationOf(file) + 1);
+        }
+
+        for (Map.Entry<String, String> link : parents.entrySet()) {
+            JobInfo shard = recovery.jobs.get(link.getKey());
+            JobInfo parent = recovery.jobs.get(link.getValue());
+            if (parent != null) {
+                shard.parent = parent;
+                parent.children.add(shard);
+            }
+        }
+        System.out.println("Recovered " + recovery.users.size() + " users and " + recovery.jobs.size()
+                + " jobs from " + directory.getAbsolutePath());
+        return recovery;
+    }
+
+    public void start(Supplier<List<String>> snapshotSource) throws IOException {
+        this.snapshotSource = snapshotSource;
+        openJournal();
+        Thread thread = new Thread(this, "job-journal");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void recordUser(UserInfo user) {
+        await(append(encodeUser(user)));
+    }
+
+    /** Queues the job's current state; returns without waiting for it to reach the disk. */
+    public CompletableFuture<Void> recordJob(String event, JobInfo job) {
+        return append(encodeJob(event, job));
+    }
+
+    /** Queues the job's current state and waits until it has been fsynced. */
+    public void recordJobDurably(String event, JobInfo job) {
+        await(recordJob(event, job));
+    }
+
+    private CompletableFuture<Void> append(String line) {
+        Record record = new Record(line);
+        queue.add(record);
+        return record.committed;
+    }
+
+    private void await(CompletableFuture<Void> committed) {
+        try {
+            committed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("Error writing job journal: " + e.getCause().getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Record> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                System.out.println("Job journal interrupted: " + e.getMessage());
+                return;
+            }
+            queue.drainTo(batch);
+
+            try {
+                StringBuilder lines = new StringBuilder();
+                for (Record record : batch) {
+                    lines.append(record.line).append('\n');
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) {
+                    journal.write(bytes);
+                }
+                journal.force(false);
+                batch.forEach(record -> record.committed.complete(null));
+            } catch (IOException e) {
+                batch.forEach(record -> record.committed.completeExceptionally(e));
+            }
+
+            recordsSinceSnapshot += batch.size();
+            batch.clear();
+            if (recordsSinceSnapshot >= SNAPSHOT_INTERVAL) {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    System.out.println("Error writing journal snapshot: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void snapshot() throws IOException {
+        long previous = generation;
+        generation++;
+        openJournal();
+        recordsSinceSnapshot = 0;
+
+        // Changes made while the state is captured are also in the new journal file, and replaying
+        // them over the snapshot is harmless because every record is a full upsert.
+        File temp = new File(directory, SNAPSHOT_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            writer.write("GENERATION\t" + generation + "\n");
+            for (String line : snapshotSource.get()) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), new File(directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        for (File file : journalFiles()) {
+            if (generationOf(file) <= previous) {
+                file.delete();
+            }
+        }
+        System.out.println("Wrote job journal snapshot (generation " + generation + ")");
+    }
+
+    private void openJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        journal = FileChannel.open(new File(directory, JOURNAL_PREFIX + generation + JOURNAL_SUFFIX).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private List<File> journalFiles() {
+        File[] files = directory.listFiles(
+                file -> file.getName().startsWith(JOURNAL_PREFIX) && file.getName().endsWith(JOURNAL_SUFFIX));
+        List<File> sorted = new ArrayList<>(files != null ? Arrays.asList(files) : Collections.emptyList());
+        sorted.sort(Comparator.comparingLong(JobJournal::generationOf));
+        return sorted;
+    }
+
+    private static long generationOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(JOURNAL_PREFIX.length(), name.length() - JOURNAL_SUFFIX.length()));
+    }
+
+    private static void replay(BufferedReader reader, Recovery recovery, Map<String, String> parents)
+            throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] fields = line.split("\t", -1);
+            try {
+                if ("USER".equals(fields[0])) {
+                    UserInfo user = new UserInfo(decode(fields[1]), decode(fields[2]));
+                    recovery.users.put(user.email, user);
+                } else if ("JOB".equals(fields[0])) {
+                    String id = decode(fields[2]);
+                    JobInfo job = recovery.jobs.get(id);
+                    if (job == null) {
+                        job = new JobInfo(id, null, null, null, null);
+                        recovery.jobs.put(id, job);
+                    }
+                    String parentId = decodeJob(fields, job);
+                    if (parentId != null) {
+                        parents.put(id, parentId);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // A torn last line from a crash mid-write; everything before it is intact.
+                System.out.println("Skipping unreadable journal record: " + e.getMessage());
+            }
+        }
+    }
+
+    public static String encodeUser(UserInfo user) {
+        return "USER\t" + encode(user.email) + "\t" + encode(user.password);
+    }
+
+    public static String encodeJob(String event, JobInfo job) {
+        StringJoiner inputs = new StringJoiner(",");
+        for (Map.Entry<String, String> file : job.inputHashes.entrySet()) {
+            inputs.add(encode(file.getKey()) + ":" + file.getValue() + ":" + job.inputSizes.get(file.getKey()));
+        }
+        StringJoiner dataFiles = new StringJoiner(",");
+        job.dataFiles.forEach(file -> dataFiles.add(encode(file)));
+        StringJoiner children = new StringJoiner(",");
+        job.children.forEach(child -> children.add(encode(child.id)));
+
+        return String.join("\t", "JOB", event, encode(job.id), encode(job.username), job.state().name(),
+                String.valueOf(job.startTime), String.valueOf(job.endTime), String.valueOf(job.executionTime),
+                encode(job.cost), encode(job.assignedWorkerId), encode(job.pythonPath), encode(job.dataFolder),
+                encode(job.outputFolder), String.valueOf(job.retryCount),
+                encode(job.isShard() ? job.parent.id : null), String.valueOf(job.requestedShards),
+                String.valueOf(job.inputsStaged), dataFiles.toString(), inputs.toString(), children.toString(),
+                String.valueOf(job.batch), String.valueOf(job.speculativeTime),
+                String.valueOf(job.priority));
+    }
+
+    /**
+     * Decodes a job record on its own, outside of a replay. The parent link is left unset and the
+     * ids of the job's shards are added to {@code childIds} for the caller to resolve.
+     */
+    public static JobInfo decodeJob(String line, List<String> childIds) {
+        String[] fields = line.split("\t", -1);
+        JobInfo job = new JobInfo(decode(fields[2]), null, null, null, null);
+        decodeJob(fields, job);
+        if (fields.length > 19 && !fields[19].isEmpty()) {
+            for (String child : fields[19].split(",")) {
+                childIds.add(decode(child));
+            }
+        }
+        return job;
+    }
+
+    /** The id of the job a record is of, without decoding the rest of it. */
+    public static String jobIdOf(String line) {
+        return decode(line.split("\t", 4)[2]);
+    }
+
+    /** Whether a job record is of a shard or of a job in a batch, without decoding the rest of it. */
+    public static boolean hasParent(String line) {
+        String[] fields = line.split("\t", 16);
+        return fields.length > 14 && !fields[14].isEmpty();
+    }
+
+    private static String decodeJob(String[] fields, JobInfo job) {
+        job.username = decode(fields[3]);
+        job.restore(JobState.valueOf(fields[4]));
+        job.startTime = Long.parseLong(fields[5]);
+        job.endTime = Long.parseLong(fields[6]);
+        job.executionTime = Long.parseLong(fields[7]);
+        job.cost = decode(fields[8]);
+        job.assignedWorkerId = decode(fields[9]);
+        job.pythonPath = decode(fields[10]);
+        job.dataFolder = decode(fields[11]);
+        job.outputFolder = decode(fields[12]);
+        job.retryCount = Integer.parseInt(fields[13]);
+        job.requestedShards = Integer.parseInt(fields[15]);
+        job.inputsStaged = Boolean.parseBoolean(fields[16]);
+        job.batch = fields.length > 20 && Boolean.parseBoolean(fields[20]);
+        job.speculativeTime = fields.length > 21 ? Long.parseLong(fields[21]) : 0;
+        job.priority = fields.length > 22 ? Integer.parseInt(fields[22]) : 0;
+
+        job.dataFiles = new ArrayList<>();
+        for (String file : fields[17].isEmpty() ? new String[0] : fields[17].split(",")) {
+            job.dataFiles.add(decode(file));
+        }
+        Map<String, String> hashes = new LinkedHashMap<>();
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        for (String input : fields[18].isEmpty() ? new String[0] : fields[18].split(",")) {
+            String[] parts = input.split(":");
+            hashes.put(decode(parts[0]), parts[1]);
+            sizes.put(decode(parts[0]), Long.parseLong(parts[2]));
+        }
+        job.inputHashes = hashes;
+        job.inputSizes = sizes;
+        return decode(fields[14]);
+    }
+
+    private static String encode(String value) {
+        return value == null ? "" : URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String value) {
+        return value.isEmpty() ? null : URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+}
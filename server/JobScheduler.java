@@ -0,0 +1,353 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
+
+public class JobScheduler implements Runnable {
+    private static final long IDLE_WAKEUP_INTERVAL = 1000;
+    private static final long SPECULATION_MIN_RUNTIME = 5000;
+
+    private final Map<String, WorkerInfo> workers;
+    private final FairShareQueue pendingJobs = new FairShareQueue();
+    // Jobs taken off the queue to wait for a slot on a worker that holds their inputs, longest waiting first.
+    private final Deque<JobInfo> localityWaits = new ConcurrentLinkedDeque<>();
+    private final Map<String, JobInfo> runningJobs = new ConcurrentHashMap<>();
+    private final RuntimeEstimates runtimeEstimates = new RuntimeEstimates();
+    private final IdleWorkers idleWorkers = new IdleWorkers();
+    private final Object lock = new Object();
+    private boolean signalled;
+    private volatile boolean running = true;
+    private volatile double speculationMultiple;
+    private volatile long localityWait;
+    private volatile BiConsumer<JobInfo, WorkerInfo> assignmentListener = (job, worker) -> {
+    };
+    private volatile BiConsumer<JobInfo, WorkerInfo> speculationListener = (job, worker) -> {
+    };
+
+    private final JobInfo.TransitionListener transitionListener = (job, from, to) -> {
+        if (from == JobState.PROCESSING) {
+            pendingJobs.finished(job);
+            runningJobs.remove(job.id);
+        }
+    };
+
+    public JobScheduler(Map<String, WorkerInfo> workers) {
+        this.workers = workers;
+        JobInfo.addTransitionListener(transitionListener);
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "job-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void setAssignmentListener(BiConsumer<JobInfo, WorkerInfo> assignmentListener) {
+        this.assignmentListener = assignmentListener;
+    }
+
+    public void setSpeculationListener(BiConsumer<JobInfo, WorkerInfo> speculationListener) {
+        this.speculationListener = speculationListener;
+    }
+
+    /**
+     * Runs a second attempt of a job that has been running for more than {@code multiple} times the
+     * run time expected of it, when a worker is idle and nothing is queued. Zero turns this off.
+     */
+    public void setSpeculationMultiple(double multiple) {
+        this.speculationMultiple = multiple;
+    }
+
+    /**
+     * Lets a job whose inputs are mostly cached on a busy worker wait up to {@code millis} for a slot
+     * there, while the jobs behind it take the free workers. Zero turns this off.
+     */
+    public void setLocalityWait(long millis) {
+        this.localityWait = millis;
+    }
+
+    /** Gives the user a share of {@code weight} of the slots and at most {@code cap} running jobs; 0 means no cap. */
+    public void setShare(String username, int weight, int cap) {
+        pendingJobs.setShare(username, weight, cap);
+        signal();
+    }
+
+    /** Lets the shorter of a user's queued jobs, by their expected run time, start first. */
+    public void setShortestFirst(boolean shortestFirst) {
+        pendingJobs.setShortestFirst(shortestFirst);
+    }
+
+    public void setDefaultMaxRunning(int cap) {
+        pendingJobs.setDefaultMaxRunning(cap);
+        signal();
+    }
+
+    /** Stops the scheduler thread and stops following job state changes. */
+    public void shutdown() {
+        running = false;
+        JobInfo.removeTransitionListener(transitionListener);
+        signal();
+    }
+
+    public void submit(JobInfo job) {
+        job.queuedTime = System.currentTimeMillis();
+        job.expectedRuntime = runtimeEstimates.estimate(job);
+        pendingJobs.add(job);
+        signal();
+    }
+
+    /** Queues a job to be retried ahead of the jobs that have not run yet. */
+    public void requeue(JobInfo job) {
+        job.queuedTime = System.currentTimeMillis();
+        // A retried job has waited enough already; it runs on whichever worker is free.
+        job.localityDeadline = job.queuedTime;
+        pendingJobs.addRetry(job);
+        signal();
+    }
+
+    public boolean remove(JobInfo job) {
+        boolean waiting = localityWaits.remove(job);
+        return pendingJobs.remove(job) || waiting;
+    }
+
+    /**
+     * Queued jobs that could start if there were a free slot. Those held back by a user's cap are not
+     * counted, nor are those waiting for a worker with their inputs, as more workers would not help them.
+     */
+    public int pendingCount() {
+        return pendingJobs.dispatchableCount();
+    }
+
+    /** How long the longest waiting of the jobs next in line has waited. */
+    public long oldestWait() {
+        return pendingJobs.oldestWait(System.currentTimeMillis());
+    }
+
+    /** Frees the job's slot on the worker; returns false if the job was not running there. */
+    public boolean jobCompleted(WorkerInfo worker, String jobId, long executionTime) {
+        if (!idleWorkers.completed(worker, jobId, executionTime)) {
+            return false;
+        }
+        signal();
+        return true;
+    }
+
+    /** Learns from the run time of a job that completed how long the next runs of its script take. */
+    public void recordRuntime(JobInfo job, long executionTime) {
+        if (runtimeEstimates.record(job, executionTime)) {
+            pendingJobs.updateExpectedRuntimes(runtimeEstimates::estimate);
+        }
+    }
+
+    /** Learns from a run recorded in the performance log before the server started. */
+    public void recordRuntime(PerformanceMetric metric) {
+        if (metric.success) {
+            runtimeEstimates.record(metric.script, metric.inputBytes, metric.executionTime);
+        }
+    }
+
+    /** Frees the slot of a job the worker stopped on request; a stopped run says nothing about its speed. */
+    public boolean jobStopped(WorkerInfo worker, String jobId) {
+        if (!idleWorkers.release(worker, jobId)) {
+            return false;
+        }
+        signal();
+        return true;
+    }
+
+    public void capacityChanged(WorkerInfo worker, int slots) {
+        idleWorkers.setSlots(worker, slots);
+        signal();
+    }
+
+    public void blobsCached(WorkerInfo worker, Collection<String> hashes) {
+        hashes.forEach(hash -> idleWorkers.blobCached(worker, hash));
+    }
+
+    public void blobsEvicted(WorkerInfo worker, Collection<String> hashes) {
+        hashes.forEach(hash -> idleWorkers.blobsEvicted(worker, hash));
+    }
+
+    /** Stops giving the worker jobs, so it can be retired once the ones it runs have finished. */
+    public void drain(WorkerInfo worker) {
+        idleWorkers.drain(worker);
+    }
+
+    public void workerFailed(WorkerInfo worker) {
+        idleWorkers.remove(worker);
+        signal();
+    }
+
+    private void signal() {
+        synchronized (lock) {
+            signalled = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            synchronized (lock) {
+                while (!signalled && running) {
+                    try {
+                        lock.wait(IDLE_WAKEUP_INTERVAL);
+                    } catch (InterruptedException e) {
+                        System.out.println("Scheduler interrupted: " + e.getMessage());
+                        return;
+                    }
+                    if (pendingJobs.dispatchableCount() > 0 || !localityWaits.isEmpty()
+                            || (speculationMultiple > 0 && !runningJobs.isEmpty())) {
+                        break;
+                    }
+                }
+                signalled = false;
+            }
+
+            try {
+                dispatchPendingJobs();
+                if (speculationMultiple > 0 && pendingJobs.isEmpty() && localityWaits.isEmpty()) {
+                    speculateStragglers();
+                }
+            } catch (Exception e) {
+                System.out.println("Error dispatching pending jobs: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void dispatchPendingJobs() {
+        dispatchLocalityWaits();
+        JobInfo job;
+        while ((job = pendingJobs.peek()) != null) {
+            if (job.state() != JobState.PENDING) {
+                pendingJobs.remove(job);
+                continue;
+            }
+
+            // Delay scheduling: a job waits for a worker with its inputs once, for at most localityWait.
+            boolean waitForLocal = localityWait > 0 && job.localityDeadline == 0 && idleWorkers.hasLocalWorker(job);
+            WorkerInfo worker = idleWorkers.claim(job, waitForLocal);
+            if (worker == null) {
+                if (!waitForLocal || !idleWorkers.hasFreeWorker()) {
+                    return;
+                }
+                pendingJobs.remove(job);
+                job.localityDeadline = System.currentTimeMillis() + localityWait;
+                localityWaits.add(job);
+                System.out.println("Job " + job.id + " waits up to " + localityWait
+                        + "ms for a slot on a worker that holds its inputs");
+                continue;
+            }
+
+            if (!assignJobToWorker(job, worker)) {
+                pendingJobs.remove(job);
+                idleWorkers.release(worker, job.id);
+            }
+        }
+    }
+
+    /**
+     * Starts each job waiting for a worker that holds its inputs on one that now has a free slot, or
+     * puts it back in its place in the queue, free to run anywhere, once its wait is up.
+     */
+    private void dispatchLocalityWaits() {
+        long now = System.currentTimeMillis();
+        Iterator<JobInfo> waiting = localityWaits.iterator();
+        while (waiting.hasNext()) {
+            JobInfo job = waiting.next();
+            if (job.state() != JobState.PENDING) {
+                waiting.remove();
+                continue;
+            }
+            WorkerInfo worker = pendingJobs.underCap(job) ? idleWorkers.claim(job, true) : null;
+            if (worker != null) {
+                waiting.remove();
+                if (!assignJobToWorker(job, worker)) {
+                    idleWorkers.release(worker, job.id);
+                }
+            } else if (now >= job.localityDeadline) {
+                waiting.remove();
+                pendingJobs.add(job);
+                System.out.println("No worker that holds the inputs of job " + job.id + " came free within "
+                        + localityWait + "ms, running it elsewhere");
+            }
+        }
+    }
+
+    /**
+     * Gives the jobs that have overrun their expected run time the most a second attempt on an idle
+     * worker. A job gets at most one; whichever attempt delivers its result first wins.
+     */
+    private void speculateStragglers() {
+        long now = System.currentTimeMillis();
+        List<JobInfo> stragglers = new ArrayList<>();
+        Map<JobInfo, Double> overrun = new HashMap<>();
+        for (JobInfo job : runningJobs.values()) {
+            if (job.state() != JobState.PROCESSING) {
+                runningJobs.remove(job.id);
+                continue;
+            }
+            long expected = runtimeEstimates.estimate(job);
+            long elapsed = now - job.startTime;
+            if (job.speculativeWorkerId == null && expected >= 0 && elapsed >= SPECULATION_MIN_RUNTIME
+                    && elapsed > speculationMultiple * expected) {
+                stragglers.add(job);
+                overrun.put(job, (double) elapsed / Math.max(expected, 1));
+            }
+        }
+        stragglers.sort((a, b) -> Double.compare(overrun.get(b), overrun.get(a)));
+
+        for (JobInfo job : stragglers) {
+            WorkerInfo original = workers.get(job.assignedWorkerId);
+            WorkerInfo worker = idleWorkers.claimExcept(job, original);
+            if (worker == null) {
+                return;
+            }
+            job.speculate(worker.id);
+            System.out.println("Job " + job.id + " has run " + (now - job.startTime) + "ms, expected "
+                    + runtimeEstimates.estimate(job) + "ms; starting a second attempt on worker " + worker.id);
+            worker.send(ControlFrame.Op.PROCESS_JOB, job.id, job.pythonPath, job.dataFolder, job.outputFolder);
+            if (job.state() != JobState.PROCESSING) {
+                worker.send(ControlFrame.Op.CANCEL_JOB, job.id);
+            }
+            speculationListener.accept(job, worker);
+        }
+    }
+
+    /**
+     * Hands the job to the worker whose slot it has claimed. Only the thread that moves the job out of
+     * PENDING sends it, so a job cancelled after it was peeked from the queue is never sent.
+     */
+    private boolean assignJobToWorker(JobInfo job, WorkerInfo worker) {
+        if (!job.transition(JobState.PENDING, JobState.PROCESSING)) {
+            return false;
+        }
+        pendingJobs.started(job);
+        if (job.state() != JobState.PROCESSING) {
+            // Cancelled before it was counted as running, so the transition listener did not see it end.
+            pendingJobs.finished(job);
+        }
+        job.startTime = System.currentTimeMillis();
+        job.assignedWorkerId = worker.id;
+        if (job.isShard()) {
+            job.parent.transition(JobState.PENDING, JobState.PROCESSING);
+        }
+
+        System.out.println("Assigning job " + job.id + " to worker " + worker.id
+                + " (" + worker.freeSlots.get() + "/" + worker.slots + " slots free)");
+        worker.send(ControlFrame.Op.PROCESS_JOB, job.id, job.pythonPath, job.dataFolder, job.outputFolder);
+        // A cancel that came before the worker was recorded above could not tell it to stop.
+        if (job.state() == JobState.CANCELLED) {
+            worker.send(ControlFrame.Op.CANCEL_JOB, job.id);
+        }
+        if (speculationMultiple > 0) {
+            runningJobs.put(job.id, job);
+            if (job.state() != JobState.PROCESSING) {
+                // Left PROCESSING before it was tracked, so the transition listener could not untrack it.
+                runningJobs.remove(job.id);
+            }
+        }
+        assignmentListener.accept(job, worker);
+        return true;
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.*;
+
+public class JobSplitter {
+
+    public static List<List<String>> partitionBySize(Map<String, Long> fileSizes, int shardCount) {
+        int shards = Math.max(1, Math.min(shardCount, fileSizes.size()));
+        List<List<String>> partitions = new ArrayList<>();
+        long[] shardBytes = new long[shards];
+        PriorityQueue<Integer> lightest = new PriorityQueue<>(
+                Comparator.<Integer>comparingLong(i -> shardBytes[i]).thenComparingInt(i -> i));
+        for (int i = 0; i < shards; i++) {
+            partitions.add(new ArrayList<>());
+            lightest.add(i);
+        }
+
+        // Largest files first, each onto the currently lightest shard.
+        List<Map.Entry<String, Long>> files = new ArrayList<>(fileSizes.entrySet());
+        files.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> file : files) {
+            int shard = lightest.poll();
+            partitions.get(shard).add(file.getKey());
+            shardBytes[shard] += file.getValue();
+            lightest.add(shard);
+        }
+
+        partitions.removeIf(List::isEmpty);
+        return partitions;
+    }
+}
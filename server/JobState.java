@@ -0,0 +1,23 @@
+/**
+ * Where a job is in its life. A job is PENDING until a worker takes it and PROCESSING while it runs;
+ * a job whose worker died goes back to PENDING to be retried. COMPLETED, FAILED and CANCELLED are
+ * final. {@link JobInfo#transition} only makes the steps {@link #canBecome} allows.
+ */
+public enum JobState {
+    PENDING, PROCESSING, COMPLETED, FAILED, CANCELLED;
+
+    public boolean canBecome(JobState next) {
+        switch (this) {
+            case PENDING:
+                return next == PROCESSING || next == FAILED || next == CANCELLED;
+            case PROCESSING:
+                return next == PENDING || next == COMPLETED || next == FAILED || next == CANCELLED;
+            default:
+                return false;
+        }
+    }
+
+    public boolean isFinished() {
+        return this == COMPLETED || this == FAILED || this == CANCELLED;
+    }
+}
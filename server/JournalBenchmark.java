@@ -0,0 +1,200 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how many job submissions the journal commits per second. It first drives a
+ * {@link JobJournal} on its own: 1, 8 and 64 threads each record jobs durably, one after the other,
+ * the way a SUBMIT_JOB is recorded, so the group commit can share each fsync between them. Then it
+ * starts MSPServer in a scratch directory, once with --no-journal and once with the journal, and has
+ * 1, 8 and 64 logged-in clients send SUBMIT_JOB over the control port, each as soon as the reply to
+ * its last one has come back.
+ *
+ * Usage: java JournalBenchmark [seconds per run]
+ *
+ * The server runs from the class path this runs with, and needs ports 8888 to 8890 to be free.
+ */
+public class JournalBenchmark {
+    private static final int[] THREADS = {1, 8, 64};
+    private static final int CLIENT_PORT = 8888;
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0 ? Long.parseLong(args[0]) : 5) * 1000;
+        PrintStream out = System.out;
+        out.println("JobJournal, jobs recorded durably");
+        out.println(String.format("%8s %12s %12s", "threads", "records/s", "mean wait"));
+        // The journal logs each snapshot it writes.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        for (int threads : THREADS) {
+            File directory = Files.createTempDirectory("journal").toFile();
+            try {
+                long records = measureJournal(directory, threads, millis);
+                out.println(String.format("%8d %12.0f %9.2f ms", threads, records * 1000.0 / millis,
+                        threads * millis / (double) Math.max(records, 1)));
+            } finally {
+                deleteDirectory(directory);
+            }
+        }
+        System.setOut(out);
+
+        out.println();
+        out.println("MSPServer, SUBMIT_JOB over the control port (submits/s)");
+        out.println(String.format("%8s %12s %12s", "clients", "no journal", "journal"));
+        double[][] rates = new double[2][];
+        for (int mode = 0; mode < 2; mode++) {
+            rates[mode] = measureServer(mode == 0, millis);
+        }
+        for (int i = 0; i < THREADS.length; i++) {
+            out.println(String.format("%8d %12.0f %12.0f", THREADS[i], rates[0][i], rates[1][i]));
+        }
+    }
+
+    /** Returns the records committed by {@code threads} threads recording jobs durably for {@code millis}. */
+    static long measureJournal(File directory, int threads, long millis) throws Exception {
+        JobJournal journal = new JobJournal(directory);
+        journal.recover();
+        journal.start(Collections::emptyList);
+        AtomicLong records = new AtomicLong();
+        runFor(threads, millis, (thread, deadline) -> {
+            int i = 0;
+            while (System.currentTimeMillis() < deadline) {
+                JobInfo job = new JobInfo(thread + "-" + i++, "user" + thread, "script.py", "data", "output");
+                journal.recordJobDurably("SUBMITTED", job);
+                records.incrementAndGet();
+            }
+        });
+        return records.get();
+    }
+
+    /** Starts the server with or without its journal and returns the submits per second at each client count. */
+    static double[] measureServer(boolean noJournal, long millis) throws Exception {
+        File directory = Files.createTempDirectory("server").toFile();
+        List<String> command = new ArrayList<>(List.of(Paths.get(System.getProperty("java.home"), "bin", "java")
+                .toString(), "-cp", new File(System.getProperty("java.class.path")).getAbsolutePath(), "MSPServer",
+                "--min-workers=0", "--max-workers=0"));
+        if (noJournal) {
+            command.add("--no-journal");
+        }
+        Process server = new ProcessBuilder(command).directory(directory).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        try {
+            awaitPort(CLIENT_PORT, server);
+            double[] rates = new double[THREADS.length];
+            for (int i = 0; i < THREADS.length; i++) {
+                List<Client> clients = new ArrayList<>();
+                try {
+                    for (int thread = 0; thread < THREADS[i]; thread++) {
+                        clients.add(new Client("run" + i + "-" + thread + "@benchmark.local"));
+                    }
+                    AtomicLong submits = new AtomicLong();
+                    runFor(THREADS[i], millis, (thread, deadline) -> {
+                        while (System.currentTimeMillis() < deadline) {
+                            clients.get(thread).request(ControlFrame.Op.JOB_SUBMITTED, ControlFrame.Op.SUBMIT_JOB,
+                                    "script.py", "data", "output", "1");
+                            submits.incrementAndGet();
+                        }
+                    });
+                    rates[i] = submits.get() * 1000.0 / millis;
+                } finally {
+                    for (Client client : clients) {
+                        client.socket.close();
+                    }
+                }
+            }
+            return rates;
+        } finally {
+            server.destroy();
+            server.waitFor();
+            deleteDirectory(directory);
+        }
+    }
+
+    /** A client connection that has registered and logged in. */
+    static class Client {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Client(String email) throws IOException {
+            socket = new Socket("localhost", CLIENT_PORT);
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            String password = request(ControlFrame.Op.VALID_EMAIL, ControlFrame.Op.REGISTER, email).arg(0);
+            request(ControlFrame.Op.EMAIL_FOUND, ControlFrame.Op.LOGIN, email);
+            request(ControlFrame.Op.LOGIN_SUCCESS, ControlFrame.Op.PASSWORD, password);
+        }
+
+        ControlFrame request(ControlFrame.Op expected, ControlFrame.Op op, String... args) throws IOException {
+            ControlFrame.of(op, args).write(out);
+            ControlFrame reply = ControlFrame.read(in);
+            if (reply == null || reply.op != expected) {
+                throw new IOException("Expected " + expected + " in reply to " + op + ", got " + reply);
+            }
+            return reply;
+        }
+    }
+
+    static void awaitPort(int port, Process server) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (!server.isAlive() || System.currentTimeMillis() > deadline) {
+                    throw new IOException("Server did not start listening on port " + port, e);
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    interface Task {
+        void run(int thread, long deadline) throws Exception;
+    }
+
+    /** Runs the task on {@code threads} threads at once until {@code millis} from now, and fails if any did. */
+    private static void runFor(int threads, long millis, Task task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        long[] deadline = new long[1];
+        List<Future<?>> runs = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            runs.add(executor.submit(() -> {
+                start.await();
+                long end;
+                synchronized (deadline) {
+                    if (deadline[0] == 0) {
+                        deadline[0] = System.currentTimeMillis() + millis;
+                    }
+                    end = deadline[0];
+                }
+                task.run(thread, end);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> run : runs) {
+                run.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        directory.delete();
+    }
+}
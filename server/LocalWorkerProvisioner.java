@@ -0,0 +1,29 @@
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs workers as processes on the server's own machine. A worker exits once its connection to the
+ * server is closed, which is how it is retired. Each worker keeps its job directories and blob cache
+ * in a directory of its own under workers/, since workers on one machine must not share them.
+ */
+public class LocalWorkerProvisioner implements WorkerProvisioner {
+    private static final File WORKERS_DIR = new File("workers");
+
+    private final AtomicInteger launched = new AtomicInteger();
+
+    @Override
+    public void launch() throws Exception {
+        File workDir = new File(WORKERS_DIR, "worker-" + launched.incrementAndGet());
+        ProcessBuilder pb = new ProcessBuilder("java", "Worker",
+                String.valueOf(Runtime.getRuntime().availableProcessors()), "pool", workDir.getPath());
+        pb.directory(new File("."));
+        pb.inheritIO();
+        Process workerProcess = pb.start();
+        System.out.println("New worker process started in " + workDir + " (pid " + workerProcess.pid() + ")");
+    }
+
+    @Override
+    public void retire(WorkerInfo worker) {
+        worker.connection.close();
+    }
+}
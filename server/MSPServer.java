@@ -1,589 +1,1372 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.*;
 import java.util.concurrent.*;
 
 public class MSPServer {
     private static final int CLIENT_PORT = 8888;
     private static final int WORKER_PORT = 8889;
+    private static final int DATA_PORT = 8890;
+    private static final File STAGING_DIR = new File("staging");
+    private static final long BLOB_CACHE_BYTES = 4L * 1024 * 1024 * 1024;
+    private static final File JOURNAL_DIR = new File("journal");
+    private static final File HISTORY_DIR = new File("history");
+    private static final int HISTORY_MAX_JOBS = 10000;
+    private static final long HISTORY_MAX_AGE = 24L * 60 * 60 * 1000;
+    private static final String PERFORMANCE_LOG = "metrics.log";
+    private static final int BILL_SUMMARY_JOBS = 100;
     private static final String SERVER_HOST = "0.0.0.0";
-    private ServerSocket clientServerSocket;
-    private ServerSocket workerServerSocket;
+    private static final int EVENTS_PER_FRAME = 1000;
+    private static final double DEFAULT_SPECULATION_MULTIPLE = 2.0;
+    private static final long DEFAULT_LOCALITY_WAIT = 3000;
+    private static final int DEFAULT_MIN_WORKERS = 1;
+    private static final int DEFAULT_MAX_WORKERS = 10;
+    private static final long HEARTBEAT_TIMEOUT = 15000;
+    private static final long FAILURE_CHECK_INTERVAL = 1000;
+    private ControlServer controlServer;
+    private ServerSocketChannel dataServerSocket;
     private Map<String, WorkerInfo> workers = new ConcurrentHashMap<>();
     private Map<String, JobInfo> jobs = new ConcurrentHashMap<>();
-    private Map<String, JobInfo> jobHistory = new ConcurrentHashMap<>();
+    private JobHistory jobHistory;
     private Map<String, UserInfo> users = new ConcurrentHashMap<>();
-    private Map<String, List<PerformanceMetric>> performanceMetrics = new ConcurrentHashMap<>();
+    private PerformanceLog performanceLog;
     private Map<String, ClientHandler> clientHandlers = new ConcurrentHashMap<>();
-    private Queue<JobInfo> pendingJobs = new ConcurrentLinkedQueue<>();
+    private Map<String, ClientHandler> uploadingClients = new ConcurrentHashMap<>();
+    private Map<String, String> dataTokens = new ConcurrentHashMap<>();
+    private Map<String, DataChannel> workerChannels = new ConcurrentHashMap<>();
+    private Map<String, DataChannel> clientChannels = new ConcurrentHashMap<>();
+    private Map<String, Queue<JobInfo>> undeliveredOutputs = new ConcurrentHashMap<>();
+    private final JobEvents jobEvents = new JobEvents();
+    private BlobCache blobCache;
+    private JobJournal journal;
     private ExecutorService executorService;
+    private JobScheduler scheduler;
+    private Autoscaler autoscaler;
     private Timer workerMonitorTimer;
-    private static final int QUEUE_THRESHOLD = 5;
-    private static final int MAX_WORKERS = 10;
 
-    public MSPServer() {
-        executorService = Executors.newCachedThreadPool();
+    public MSPServer(boolean journaling, boolean virtualThreads, double speculationMultiple, int minWorkers,
+            int maxWorkers) {
+        executorService = ConnectionThreads.newExecutor(virtualThreads);
+        scheduler = new JobScheduler(workers);
+        scheduler.setAssignmentListener((job, worker) -> {
+            journal("ASSIGNED", job);
+            executorService.execute(() -> sendInputManifest(job, worker));
+        });
+        scheduler.setSpeculationListener(
+                (job, worker) -> executorService.execute(() -> sendInputManifest(job, worker)));
+        scheduler.setSpeculationMultiple(speculationMultiple);
+        autoscaler = new Autoscaler(workers, scheduler, new LocalWorkerProvisioner(), executorService, minWorkers,
+                maxWorkers);
+        JobInfo.addTransitionListener((job, from, to) -> jobEvents.publish(job, to));
+        blobCache = new BlobCache(new File(STAGING_DIR, "blobs"), BLOB_CACHE_BYTES);
+        try {
+            jobHistory = new JobHistory(HISTORY_DIR, HISTORY_MAX_JOBS, HISTORY_MAX_AGE);
+            File performanceFile = new File(HISTORY_DIR, PERFORMANCE_LOG);
+            PerformanceLog.read(performanceFile, scheduler::recordRuntime);
+            performanceLog = new PerformanceLog(performanceFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open job history in " + HISTORY_DIR.getAbsolutePath(), e);
+        }
+        journal = journaling ? new JobJournal(JOURNAL_DIR) : null;
         workerMonitorTimer = new Timer(true);
     }
 
     public void start() {
         try {
-            clientServerSocket = new ServerSocket(CLIENT_PORT, 50, InetAddress.getByName(SERVER_HOST));
-            workerServerSocket = new ServerSocket(WORKER_PORT, 50, InetAddress.getByName(SERVER_HOST));
+            List<JobInfo> recoveredJobs = new ArrayList<>();
+            if (journal != null) {
+                recoveredJobs = recoverState();
+                journal.start(this::snapshotState);
+            } else {
+                System.out.println("Job journal disabled, state will not survive a restart");
+            }
+
+            InetAddress host = InetAddress.getByName(SERVER_HOST);
+            controlServer = new ControlServer(Math.min(4, Runtime.getRuntime().availableProcessors()),
+                    executorService);
+            controlServer.listen(new InetSocketAddress(host, CLIENT_PORT), connection -> {
+                System.out.println("New client connected: " + connection.remoteAddress());
+                return new ClientHandler(connection, workers, jobs, jobHistory, users, performanceLog,
+                        scheduler);
+            });
+            controlServer.listen(new InetSocketAddress(host, WORKER_PORT), connection -> {
+                System.out.println("New worker connected: " + connection.remoteAddress());
+                String workerId = UUID.randomUUID().toString();
+                WorkerInfo worker = new WorkerInfo(workerId, connection);
+                workers.put(workerId, worker);
+                worker.send(ControlFrame.Op.WORKER_ID, workerId);
+                autoscaler.workerConnected();
+                return new WorkerHandler(workerId, workers, jobs, jobHistory, performanceLog, scheduler);
+            });
+            dataServerSocket = ServerSocketChannel.open()
+                    .bind(new InetSocketAddress(host, DATA_PORT), 50);
 
             System.out.println("Server listening on " + SERVER_HOST + ":" + CLIENT_PORT + " for clients...");
             System.out.println("Server listening on " + SERVER_HOST + ":" + WORKER_PORT + " for workers...");
+            System.out.println("Server listening on " + SERVER_HOST + ":" + DATA_PORT + " for file transfers...");
+
+            scheduler.start();
+            autoscaler.start();
+            recoveredJobs.forEach(scheduler::submit);
 
             workerMonitorTimer.scheduleAtFixedRate(new TimerTask() {
                 @Override
                 public void run() {
-                    System.out.println("Connected workers: " + workers.size());
-                }
-            }, 5000, 5000);
-
-            new Thread(() -> {
-                while (true) {
                     try {
-                        Socket clientSocket = clientServerSocket.accept();
-                        System.out.println("New client connected: " + clientSocket.getInetAddress());
-                        executorService.execute(new ClientHandler(clientSocket, workers, jobs, jobHistory, users,
-                                performanceMetrics, pendingJobs));
-                    } catch (IOException e) {
-                        System.out.println("Error accepting client connection: " + e.getMessage());
+                        quarantineSilentWorkers();
+                    } catch (Exception e) {
+                        System.out.println("Error checking worker heartbeats: " + e.getMessage());
                     }
                 }
-            }).start();
+            }, FAILURE_CHECK_INTERVAL, FAILURE_CHECK_INTERVAL);
+
+            controlServer.start();
 
-            new Thread(() -> {
+            executorService.execute(() -> {
                 while (true) {
                     try {
-                        Socket workerSocket = workerServerSocket.accept();
-                        System.out.println("New worker connected: " + workerSocket.getInetAddress());
-                        String workerId = UUID.randomUUID().toString();
-                        PrintWriter out = new PrintWriter(workerSocket.getOutputStream(), true);
-                        BufferedReader in = new BufferedReader(new InputStreamReader(workerSocket.getInputStream()));
-                        workers.put(workerId, new WorkerInfo(workerId, workerSocket, out, in));
-                        executorService.execute(new WorkerHandler(workerId, workerSocket, workers, jobs, jobHistory,
-                                performanceMetrics, pendingJobs));
+                        SocketChannel dataSocket = dataServerSocket.accept();
+                        executorService.execute(new DataHandler(dataSocket));
                     } catch (IOException e) {
-                        System.out.println("Error accepting worker connection: " + e.getMessage());
+                        System.out.println("Error accepting data connection: " + e.getMessage());
                     }
                 }
-            }).start();
+            });
 
         } catch (IOException e) {
             System.out.println("Error starting server: " + e.getMessage());
         }
     }
 
-    private class ClientHandler implements Runnable {
-        private Socket clientSocket;
-        private BufferedReader in;
-        private PrintWriter out;
+    private class ClientHandler implements ControlServer.Listener, JobEvents.Subscriber {
+        private ControlServer.Connection connection;
+        private final Map<String, Integer> uploadRequests = new ConcurrentHashMap<>();
+        private final Map<String, String> pendingEvents = new LinkedHashMap<>();
+        private ControlFrame request;
         private String currentUser;
+        private String loginEmail;
         private Map<String, WorkerInfo> workers;
         private Map<String, JobInfo> jobs;
-        private Map<String, JobInfo> jobHistory;
+        private JobHistory jobHistory;
         private Map<String, UserInfo> users;
-        private Map<String, List<PerformanceMetric>> performanceMetrics;
-        private Queue<JobInfo> pendingJobs;
+        private PerformanceLog performanceLog;
+        private JobScheduler scheduler;
 
-        public ClientHandler(Socket socket, Map<String, WorkerInfo> workers, Map<String, JobInfo> jobs,
-                Map<String, JobInfo> jobHistory, Map<String, UserInfo> users,
-                Map<String, List<PerformanceMetric>> performanceMetrics, Queue<JobInfo> pendingJobs) {
-            this.clientSocket = socket;
+        public ClientHandler(ControlServer.Connection connection, Map<String, WorkerInfo> workers,
+                Map<String, JobInfo> jobs, JobHistory jobHistory, Map<String, UserInfo> users,
+                PerformanceLog performanceLog, JobScheduler scheduler) {
+            this.connection = connection;
             this.workers = workers;
             this.jobs = jobs;
             this.jobHistory = jobHistory;
             this.users = users;
-            this.performanceMetrics = performanceMetrics;
-            this.pendingJobs = pendingJobs;
-            try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
-            } catch (IOException e) {
-                System.out.println("Error setting up client handler: " + e.getMessage());
+            this.performanceLog = performanceLog;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void frameReceived(ControlFrame frame) throws IOException {
+            request = frame;
+            switch (frame.op) {
+                case REGISTER:
+                    handleRegister(frame.arg(0));
+                    break;
+                case LOGIN:
+                    handleLogin(frame.arg(0));
+                    break;
+                case PASSWORD:
+                    handlePassword(frame.arg(0));
+                    break;
+                case SUBMIT_JOB:
+                    createJob(frame.arg(0), frame.arg(1), frame.arg(2), Integer.parseInt(frame.arg(3)),
+                            frame.args().size() > 4 ? Integer.parseInt(frame.arg(4)) : 0);
+                    break;
+                case SUBMIT_BATCH:
+                    createBatch(frame.arg(0), frame.arg(1), frame.argsFrom(2));
+                    break;
+                case INPUT_MANIFEST:
+                    handleInputManifest(frame.arg(0), frame.argsFrom(1));
+                    break;
+                case CHECK_STATUS:
+                    handleCheckStatus(frame.arg(0));
+                    break;
+                case BATCH_STATUS:
+                    handleBatchStatus(frame.arg(0));
+                    break;
+                case CANCEL_JOB:
+                    handleCancelJob(frame.arg(0));
+                    break;
+                case GET_BILL:
+                    handleGetBill(frame.arg(0));
+                    break;
+                case SUBSCRIBE:
+                    handleSubscribe(frame.args());
+                    break;
+                case UNSUBSCRIBE:
+                    handleUnsubscribe(frame.args());
+                    break;
+                default:
+                    reply(ControlFrame.Op.UNKNOWN_COMMAND);
             }
         }
 
         @Override
-        public void run() {
-            try {
-                String command;
-                while ((command = in.readLine()) != null) {
-                    switch (command.toUpperCase()) {
-                        case "REGISTER":
-                            handleRegister();
-                            break;
-                        case "LOGIN":
-                            handleLogin();
-                            break;
-                        case "SUBMIT_JOB":
-                            handleSubmitJob();
-                            break;
-                        case "CHECK_STATUS":
-                            handleCheckStatus();
-                            break;
-                        case "CANCEL_JOB":
-                            handleCancelJob();
-                            break;
-                        case "GET_BILL":
-                            handleGetBill();
-                            break;
-                        default:
-                            out.println("UNKNOWN_COMMAND");
-                    }
+        public void connectionClosed() {
+            System.out.println("Client disconnected: " + connection.remoteAddress());
+            if (currentUser != null) {
+                clientHandlers.remove(currentUser, this);
+            }
+            uploadRequests.keySet().forEach(jobId -> uploadingClients.remove(jobId, this));
+            jobEvents.unsubscribeAll(this);
+        }
+
+        @Override
+        public void drained() {
+            flushEvents();
+        }
+
+        /**
+         * Events wait while the client is behind on reading, and a job that changes again meanwhile is
+         * sent with its latest status only, so a slow dashboard costs one queued frame, not one per change.
+         */
+        @Override
+        public void jobChanged(String jobId, String status) {
+            synchronized (pendingEvents) {
+                pendingEvents.put(jobId, status);
+                if (!connection.hasBacklog()) {
+                    flushEvents();
                 }
-            } catch (IOException e) {
-                System.out.println("Client disconnected: " + e.getMessage());
-            } finally {
-                try {
-                    if (currentUser != null) {
-                        clientHandlers.remove(currentUser);
+            }
+        }
+
+        private void flushEvents() {
+            synchronized (pendingEvents) {
+                List<String> events = new ArrayList<>();
+                Iterator<Map.Entry<String, String>> pending = pendingEvents.entrySet().iterator();
+                while (pending.hasNext()) {
+                    Map.Entry<String, String> event = pending.next();
+                    events.add(event.getKey());
+                    events.add(event.getValue());
+                    pending.remove();
+                    if (events.size() == 2 * EVENTS_PER_FRAME || !pending.hasNext()) {
+                        connection.send(new ControlFrame(ControlFrame.Op.JOB_EVENTS, events));
+                        events = new ArrayList<>();
                     }
-                    clientSocket.close();
-                } catch (IOException e) {
-                    System.out.println("Error closing client socket: " + e.getMessage());
                 }
             }
         }
 
-        private void handleRegister() throws IOException {
-            String email = in.readLine();
+        /** Answers the frame being handled; frames of one connection are handled one at a time. */
+        private void reply(ControlFrame.Op op, String... args) {
+            connection.send(request.reply(op, args));
+        }
+
+        /** Answers the INPUT_MANIFEST of the job once its upload has been staged or has failed. */
+        void uploadFinished(String jobId, boolean complete) {
+            Integer requestId = uploadRequests.remove(jobId);
+            if (requestId != null) {
+                ControlFrame.Op op = complete ? ControlFrame.Op.FILES_RECEIVED : ControlFrame.Op.UPLOAD_FAILED;
+                connection.send(new ControlFrame(requestId, op, Collections.singletonList(jobId)));
+            }
+        }
+
+        private void handleRegister(String email) {
             if (email.matches("^[A-Za-z0-9+_.-]+@(.+)$")) {
                 String password = UUID.randomUUID().toString().substring(0, 8);
-                users.put(email, new UserInfo(email, password));
-                out.println("VALID_EMAIL");
-                out.println("Password: " + password);
+                UserInfo user = new UserInfo(email, password);
+                users.put(email, user);
+                if (journal != null) {
+                    journal.recordUser(user);
+                }
+                reply(ControlFrame.Op.VALID_EMAIL, password);
             } else {
-                out.println("INVALID_EMAIL");
+                reply(ControlFrame.Op.INVALID_EMAIL);
             }
         }
 
-        private void handleLogin() throws IOException {
-            String email = in.readLine();
-            UserInfo user = users.get(email);
-            if (user != null) {
+        private void handleLogin(String email) {
+            if (users.containsKey(email)) {
                 System.out.println("Email found, requesting password");
-                out.println("EMAIL_FOUND");
-                String password = in.readLine();
-                System.out.println("Password received");
-
-                if (user.password.equals(password)) {
-                    currentUser = email;
-                    clientHandlers.put(email, this);
-                    System.out.println("Login successful for: " + email);
-                    out.println("LOGIN_SUCCESS");
-                } else {
-                    System.out.println("Login failed: Incorrect password for: " + email);
-                    out.println("LOGIN_FAILED");
-                }
+                loginEmail = email;
+                reply(ControlFrame.Op.EMAIL_FOUND);
             } else {
                 System.out.println("Login failed: Email not found: " + email);
-                out.println("EMAIL_NOT_FOUND");
+                loginEmail = null;
+                reply(ControlFrame.Op.EMAIL_NOT_FOUND);
+            }
+        }
+
+        private void handlePassword(String password) {
+            System.out.println("Password received");
+            String email = loginEmail;
+            loginEmail = null;
+            UserInfo user = email != null ? users.get(email) : null;
+            if (user != null && user.password.equals(password)) {
+                currentUser = email;
+                clientHandlers.put(email, this);
+                String dataToken = UUID.randomUUID().toString();
+                dataTokens.put(dataToken, email);
+                System.out.println("Login successful for: " + email);
+                reply(ControlFrame.Op.LOGIN_SUCCESS, dataToken);
+            } else {
+                System.out.println("Login failed: Incorrect password for: " + email);
+                reply(ControlFrame.Op.LOGIN_FAILED);
             }
         }
 
-        private void handleSubmitJob() throws IOException {
+        private void createJob(String pythonPath, String dataFolder, String outputFolder, int shardCount,
+                int priority) {
             if (currentUser == null) {
-                out.println("NOT_LOGGED_IN");
+                reply(ControlFrame.Op.NOT_LOGGED_IN);
                 return;
             }
 
-            String pythonPath = in.readLine();
-            String dataFolder = in.readLine();
-            String outputFolder = in.readLine();
-
             String jobId = UUID.randomUUID().toString();
             JobInfo job = new JobInfo(jobId, currentUser, pythonPath, dataFolder, outputFolder);
+            job.requestedShards = shardCount;
+            job.priority = priority;
             jobs.put(jobId, job);
+            journalDurably("SUBMITTED", job);
+
+            // The job is only queued once the client has uploaded its inputs, see inputsReceived().
+            reply(ControlFrame.Op.JOB_SUBMITTED, jobId);
+        }
 
-            pendingJobs.add(job);
-            out.println("JOB_SUBMITTED");
-            out.println("Request ID: " + jobId);
+        /**
+         * A batch is a parent job whose children are independent jobs running the same script on
+         * different data folders. Each child's inputs are uploaded like a single job's, so the script is
+         * sent once and then found in the blob cache; the children are queued together once all of
+         * them are staged.
+         */
+        private void createBatch(String pythonPath, String outputFolder, List<String> dataFolders) {
+            if (currentUser == null) {
+                reply(ControlFrame.Op.NOT_LOGGED_IN);
+                return;
+            }
+            if (dataFolders.isEmpty()) {
+                reply(ControlFrame.Op.INVALID_REQUEST);
+                return;
+            }
+
+            JobInfo batch = new JobInfo(UUID.randomUUID().toString(), currentUser, pythonPath, null, outputFolder);
+            batch.batch = true;
+            List<String> jobIds = new ArrayList<>();
+            jobIds.add(batch.id);
+            for (String dataFolder : dataFolders) {
+                JobInfo job = new JobInfo(batch.id + "-" + (batch.children.size() + 1), currentUser, pythonPath,
+                        dataFolder, outputFolder);
+                job.parent = batch;
+                job.requestedShards = 1;
+                batch.children.add(job);
+                jobIds.add(job.id);
+            }
+            for (JobInfo job : batch.children) {
+                jobs.put(job.id, job);
+                journal("SUBMITTED", job);
+            }
+            jobs.put(batch.id, batch);
+            journalDurably("SUBMITTED", batch);
 
-            processPendingJobs();
+            System.out.println("Batch " + batch.id + " submitted with " + batch.children.size() + " jobs");
+            connection.send(request.reply(ControlFrame.Op.BATCH_SUBMITTED, jobIds));
         }
 
-        private void handleCheckStatus() throws IOException {
-            String jobId = in.readLine();
-            System.out.println("Checking status for job: " + jobId);
+        private void handleInputManifest(String jobId, List<String> manifest) throws IOException {
+            Map<String, String> hashes = new LinkedHashMap<>();
+            Map<String, Long> sizes = new LinkedHashMap<>();
+            for (int i = 0; i + 2 < manifest.size(); i += 3) {
+                String path = manifest.get(i);
+                hashes.put(path, manifest.get(i + 1));
+                sizes.put(path, Long.parseLong(manifest.get(i + 2)));
+            }
 
             JobInfo job = jobs.get(jobId);
-            if (job != null) {
-                System.out.println("Found job in active jobs with status: " + job.status);
-                out.println("JOB_FOUND");
-                out.println(job.status);
-                out.flush();
-
-                if ("COMPLETED".equals(job.status)) {
-                    out.println("OUTPUT_LOCATION");
-                    out.println(job.outputFolder);
-                    out.println("BILL_INFO");
-                    out.println("Job ID: " + job.id);
-                    out.println("Start Time: " + new Date(job.startTime));
-                    out.println("End Time: " + new Date(job.endTime));
-                    out.println("Cost: $" + String.format("%.2f", calculateCost(job)));
-                    out.flush();
+            if (job == null || !job.username.equals(currentUser) || stagingRoot(job) != job || job.inputsStaged
+                    || !job.inputHashes.isEmpty()) {
+                reply(ControlFrame.Op.JOB_NOT_FOUND);
+                return;
+            }
+
+            List<String> missing = new ArrayList<>();
+            File inputs = inputsDir(job);
+            for (Map.Entry<String, String> file : hashes.entrySet()) {
+                if (!blobCache.linkTo(file.getValue(), DataChannel.resolve(inputs, file.getKey()))) {
+                    missing.add(file.getKey());
                 }
-            } else {
-                System.out.println("Checking job history for: " + jobId);
-                JobInfo historicalJob = jobHistory.get(jobId);
-                if (historicalJob != null) {
-                    System.out.println("Found job in history with status: " + historicalJob.status);
-                    out.println("JOB_FOUND");
-                    out.println(historicalJob.status);
-                    out.flush();
-
-                    if ("COMPLETED".equals(historicalJob.status)) {
-                        System.out.println("Sending completed job details");
-                        out.println("OUTPUT_LOCATION");
-                        out.println(historicalJob.outputFolder);
-                        out.println("BILL_INFO");
-                        out.println("Job ID: " + historicalJob.id);
-                        out.println("Start Time: " + new Date(historicalJob.startTime));
-                        out.println("End Time: " + new Date(historicalJob.endTime));
-                        out.println("Cost: $" + String.format("%.2f", calculateCost(historicalJob)));
-                        out.flush();
+            }
+            job.inputSizes = sizes;
+            job.inputHashes = hashes;
+            uploadRequests.put(jobId, request.requestId);
+            uploadingClients.put(jobId, this);
+            System.out.println("Job " + jobId + " needs " + missing.size() + " of " + hashes.size()
+                    + " input files uploaded");
+
+            connection.send(request.reply(ControlFrame.Op.MISSING_FILES, missing));
+        }
+
+        /**
+         * Follows the given jobs, or every job of the user when no ids are given. The reply lists the
+         * current status of each job followed; events come after it, so no change in between is missed.
+         */
+        private void handleSubscribe(List<String> jobIds) {
+            if (currentUser == null) {
+                reply(ControlFrame.Op.NOT_LOGGED_IN);
+                return;
+            }
+            List<String> statuses = new ArrayList<>();
+            synchronized (pendingEvents) {
+                if (jobIds.isEmpty()) {
+                    jobEvents.subscribeUser(currentUser, this);
+                    for (JobInfo job : jobs.values()) {
+                        if (currentUser.equals(job.username)) {
+                            statuses.add(job.id);
+                            statuses.add(job.state().name());
+                        }
                     }
-                } else {
-                    System.out.println("Job not found in either active jobs or history");
-                    out.println("JOB_NOT_FOUND");
-                    out.flush();
                 }
+                for (String jobId : jobIds) {
+                    JobInfo job = findJob(jobId);
+                    if (job == null || !currentUser.equals(job.username)) {
+                        continue;
+                    }
+                    if (jobs.containsKey(job.id)) {
+                        jobEvents.subscribeJob(job.id, this);
+                    }
+                    statuses.add(job.id);
+                    statuses.add(job.state().name());
+                    for (JobInfo child : job.children) {
+                        statuses.add(child.id);
+                        statuses.add(child.state().name());
+                    }
+                }
+                connection.send(request.reply(ControlFrame.Op.SUBSCRIBED, statuses));
+            }
+        }
+
+        private void handleUnsubscribe(List<String> jobIds) {
+            if (currentUser == null) {
+                reply(ControlFrame.Op.NOT_LOGGED_IN);
+                return;
             }
+            if (jobIds.isEmpty()) {
+                jobEvents.unsubscribeUser(currentUser, this);
+            }
+            for (String jobId : jobIds) {
+                jobEvents.unsubscribeJob(jobId, this);
+            }
+            reply(ControlFrame.Op.SUBSCRIBED);
+        }
+
+        private void handleCheckStatus(String jobId) {
+            System.out.println("Checking status for job: " + jobId);
+            sendJobInfo(jobId);
         }
 
-        private void handleCancelJob() throws IOException {
-            String jobId = in.readLine();
+        /** Replies BATCH_FOUND with the status of a batch or split job and one "id, status" line per child. */
+        private void handleBatchStatus(String batchId) {
+            JobInfo batch = findJob(batchId);
+            if (batch == null || !batch.isSplit()) {
+                reply(ControlFrame.Op.JOB_NOT_FOUND);
+                return;
+            }
+            List<String> lines = new ArrayList<>();
+            lines.add(batch.state().name());
+            for (JobInfo job : batch.children) {
+                lines.add(job.id + "\t" + job.state());
+            }
+            connection.send(request.reply(ControlFrame.Op.BATCH_FOUND, lines));
+        }
+
+        private void handleCancelJob(String jobId) {
             JobInfo job = jobs.get(jobId);
 
-            if (job != null) {
-                if ("PROCESSING".equals(job.status)) {
-                    WorkerInfo worker = workers.get(job.assignedWorkerId);
-                    if (worker != null) {
-                        worker.out.println("CANCEL_JOB");
-                        job.status = "CANCELLED";
+            if (job != null && job.isSplit()) {
+                if (!job.state().isFinished()) {
+                    for (JobInfo shard : job.children) {
+                        cancelShard(shard);
+                    }
+                    if (job.children.isEmpty() && job.moveTo(JobState.CANCELLED) != null) {
                         job.endTime = System.currentTimeMillis();
-                        out.println("JOB_CANCELLED");
-                    } else {
-                        out.println("WORKER_NOT_FOUND");
+                        releaseInputs(job);
                     }
-                } else if ("PENDING".equals(job.status)) {
-                    pendingJobs.remove(job);
-                    job.status = "CANCELLED";
+                    journalDurably("CANCELLED", job);
+                    reply(ControlFrame.Op.JOB_CANCELLED);
+                } else {
+                    reply(ControlFrame.Op.JOB_NOT_CANCELLABLE);
+                }
+            } else if (job != null && job.isShard()) {
+                // Cancelling one shard or batch job leaves the others running.
+                reply(cancelShard(job) ? ControlFrame.Op.JOB_CANCELLED : ControlFrame.Op.JOB_NOT_CANCELLABLE);
+            } else if (job != null) {
+                JobState previous = job.moveTo(JobState.CANCELLED);
+                if (previous != null) {
                     job.endTime = System.currentTimeMillis();
-                    out.println("JOB_CANCELLED");
+                    stopJob(job, previous);
+                    releaseInputs(job);
+                    journalDurably("CANCELLED", job);
+                    reply(ControlFrame.Op.JOB_CANCELLED);
                 } else {
-                    out.println("JOB_NOT_CANCELLABLE");
+                    reply(ControlFrame.Op.JOB_NOT_CANCELLABLE);
                 }
             } else {
-                out.println("JOB_NOT_FOUND");
+                reply(ControlFrame.Op.JOB_NOT_FOUND);
             }
         }
 
-        private void handleGetBill() throws IOException {
-            String jobId = in.readLine();
+        private void handleGetBill(String jobId) {
+            if (jobId == null || jobId.isEmpty()) {
+                sendBillSummary();
+                return;
+            }
             System.out.println("Getting bill for job: " + jobId);
+            sendJobInfo(jobId);
+        }
 
+        /** Replies JOB_FOUND with the status, plus the output location and bill once it completed. */
+        private void sendJobInfo(String jobId) {
             JobInfo job = jobs.get(jobId);
             if (job != null) {
-                System.out.println("Found job in active jobs with status: " + job.status);
-                out.println("JOB_FOUND");
-                out.println(job.status);
-                out.flush();
-
-                if ("COMPLETED".equals(job.status)) {
-                    out.println("OUTPUT_LOCATION");
-                    out.println(job.outputFolder);
-                    out.println("BILL_INFO");
-                    out.println("Job ID: " + job.id);
-                    out.println("Start Time: " + new Date(job.startTime));
-                    out.println("End Time: " + new Date(job.endTime));
-                    out.println("Cost: $" + String.format("%.2f", calculateCost(job)));
-                    out.flush();
-                }
+                System.out.println("Found job in active jobs with status: " + job.state());
             } else {
                 System.out.println("Checking job history for: " + jobId);
-                JobInfo historicalJob = jobHistory.get(jobId);
-                if (historicalJob != null) {
-                    System.out.println("Found job in history with status: " + historicalJob.status);
-                    out.println("JOB_FOUND");
-                    out.println(historicalJob.status);
-                    out.flush();
-
-                    if ("COMPLETED".equals(historicalJob.status)) {
-                        System.out.println("Sending completed job details");
-                        out.println("OUTPUT_LOCATION");
-                        out.println(historicalJob.outputFolder);
-                        out.println("BILL_INFO");
-                        out.println("Job ID: " + historicalJob.id);
-                        out.println("Start Time: " + new Date(historicalJob.startTime));
-                        out.println("End Time: " + new Date(historicalJob.endTime));
-                        out.println("Cost: $" + String.format("%.2f", calculateCost(historicalJob)));
-                        out.flush();
-                    }
-                } else {
+                job = jobHistory.get(jobId);
+                if (job == null) {
                     System.out.println("Job not found in either active jobs or history");
-                    out.println("JOB_NOT_FOUND");
-                    out.flush();
+                    reply(ControlFrame.Op.JOB_NOT_FOUND);
+                    return;
+                }
+                System.out.println("Found job in history with status: " + job.state());
+            }
+
+            if (job.state() == JobState.COMPLETED) {
+                List<String> bill = new ArrayList<>(Arrays.asList(job.state().name(),
+                        job.outputFolder,
+                        "Job ID: " + job.id,
+                        "Start Time: " + new Date(job.startTime),
+                        "End Time: " + new Date(job.endTime),
+                        "Cost: $" + String.format("%.2f", calculateCost(job))));
+                double speculativeCost = speculativeCost(job);
+                if (speculativeCost > 0) {
+                    bill.add("Redundant Attempts: $" + String.format("%.2f", speculativeCost) + " (not charged)");
                 }
+                connection.send(request.reply(ControlFrame.Op.JOB_FOUND, bill));
+            } else {
+                reply(ControlFrame.Op.JOB_FOUND, job.state().name());
+            }
+        }
+
+        /**
+         * Sends how many jobs the user has run, a line for each of the latest BILL_SUMMARY_JOBS of them and
+         * the total cost of all of them. The history is read one job at a time, so neither the reply nor the
+         * memory it takes grows with the user's history.
+         */
+        private void sendBillSummary() {
+            System.out.println("Getting bill summary for user: " + currentUser);
+            double[] total = new double[1];
+            int[] count = new int[1];
+            Deque<String> latest = new ArrayDeque<>();
+            // Shards and the jobs of a batch are billed under their parent, so they are not listed.
+            if (currentUser != null) {
+                jobHistory.forEachJobOf(currentUser, job -> {
+                    double cost = job.state() == JobState.COMPLETED ? calculateCost(job) : 0;
+                    total[0] += cost;
+                    count[0]++;
+                    if (latest.size() == BILL_SUMMARY_JOBS) {
+                        latest.removeFirst();
+                    }
+                    latest.addLast(job.id + "\t" + job.state() + "\t$" + String.format("%.2f", cost));
+                });
+            }
+            List<String> lines = new ArrayList<>();
+            lines.add(String.valueOf(count[0]));
+            lines.addAll(latest);
+            lines.add("Total: $" + String.format("%.2f", total[0]));
+            connection.send(request.reply(ControlFrame.Op.BILL_SUMMARY, lines));
+        }
+
+        /** What the losing attempts of the job's stragglers cost; the winning attempt alone is charged. */
+        private double speculativeCost(JobInfo job) {
+            double total = job.speculativeTime / 1000.0 * 0.01;
+            for (JobInfo shard : job.children) {
+                total += speculativeCost(shard);
             }
+            return total;
         }
 
         private double calculateCost(JobInfo job) {
+            if (job.isSplit()) {
+                double total = 0;
+                for (JobInfo shard : job.children) {
+                    total += calculateCost(shard);
+                }
+                return total;
+            }
             if (job.endTime <= job.startTime)
                 return 0.0;
             long duration = job.endTime - job.startTime;
             return duration / 1000.0 * 0.01;
         }
+    }
 
-        private void processPendingJobs() {
-            while (!pendingJobs.isEmpty()) {
-                JobInfo job = pendingJobs.peek();
-                WorkerInfo worker = selectWorker();
+    private class WorkerHandler implements ControlServer.Listener {
+        private String workerId;
+        private Map<String, WorkerInfo> workers;
+        private Map<String, JobInfo> jobs;
+        private JobHistory jobHistory;
+        private PerformanceLog performanceLog;
+        private JobScheduler scheduler;
 
-                if (worker != null) {
-                    pendingJobs.poll();
-                    assignJobToWorker(job, worker);
-                } else if (workers.size() < MAX_WORKERS) {
-                    System.out.println("No available workers. Current worker count: " + workers.size());
-                    createNewWorker();
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException e) {
-                        System.out.println("Interrupted while waiting for new worker");
+        public WorkerHandler(String workerId, Map<String, WorkerInfo> workers,
+                Map<String, JobInfo> jobs, JobHistory jobHistory,
+                PerformanceLog performanceLog,
+                JobScheduler scheduler) {
+            this.workerId = workerId;
+            this.workers = workers;
+            this.jobs = jobs;
+            this.jobHistory = jobHistory;
+            this.performanceLog = performanceLog;
+            this.scheduler = scheduler;
+        }
+
+        @Override
+        public void frameReceived(ControlFrame frame) {
+            System.out.println("Received command from worker " + workerId + ": " + frame.op);
+            switch (frame.op) {
+                case WORKER_HEARTBEAT:
+                    handleWorkerHeartbeat(workerId);
+                    break;
+                case WORKER_SLOTS:
+                    int slots = Integer.parseInt(frame.arg(0));
+                    WorkerInfo registered = workers.get(workerId);
+                    if (registered != null && slots > 0) {
+                        System.out.println("Worker " + workerId + " advertised " + slots + " slots");
+                        scheduler.capacityChanged(registered, slots);
                     }
-                    worker = selectWorker();
-                    if (worker != null) {
-                        pendingJobs.poll();
-                        assignJobToWorker(job, worker);
-                    } else {
-                        System.out.println("Failed to get available worker after creation");
+                    break;
+                case MISSING_BLOBS:
+                    String manifestJobId = frame.arg(0);
+                    List<String> missingPaths = new ArrayList<>(frame.argsFrom(1));
+                    JobInfo manifestJob = jobs.get(manifestJobId);
+                    WorkerInfo manifestWorker = workers.get(workerId);
+                    if (manifestJob != null && manifestWorker != null
+                            && manifestWorker.runningJobs.contains(manifestJobId)) {
+                        scheduler.blobsCached(manifestWorker, manifestJob.inputHashes.values());
+                        executorService.execute(() -> sendJobInputs(manifestJob, manifestWorker, missingPaths));
+                    }
+                    break;
+                case CACHED_BLOBS:
+                case BLOBS_EVICTED:
+                    WorkerInfo cacheWorker = workers.get(workerId);
+                    if (cacheWorker == null) {
                         break;
                     }
-                } else {
-                    System.out.println("Maximum number of workers reached (" + MAX_WORKERS + ")");
+                    if (frame.op == ControlFrame.Op.CACHED_BLOBS) {
+                        scheduler.blobsCached(cacheWorker, frame.args());
+                    } else {
+                        scheduler.blobsEvicted(cacheWorker, frame.args());
+                    }
                     break;
-                }
+                case JOB_COMPLETE:
+                    handleJobComplete(frame.arg(0), Boolean.parseBoolean(frame.arg(1)),
+                            Long.parseLong(frame.arg(2)));
+                    break;
+                case JOB_STOPPED:
+                    handleJobStopped(frame.arg(0));
+                    break;
+                default:
+                    System.out.println("Unknown command from worker: " + frame.op);
             }
         }
 
-        private void createNewWorker() {
-            try {
-                System.out.println("Creating new worker due to high load...");
-                ProcessBuilder pb = new ProcessBuilder("java", "Worker");
-                pb.directory(new File("."));
-                pb.inheritIO();
-                Process workerProcess = pb.start();
+        @Override
+        public void connectionClosed() {
+            System.out.println("Worker " + workerId + " disconnected");
+            handleWorkerFailure(workerId);
+        }
 
-                Thread.sleep(2000);
+        private void handleJobComplete(String completedJobId, boolean success, long executionTime) {
+            System.out.println("Job " + completedJobId + " completed with success: " + success
+                    + ", time: " + executionTime + "ms");
 
-                if (workerProcess.isAlive()) {
-                    System.out.println("New worker process started successfully.");
-                    System.out.println("Current number of connected workers: " + workers.size());
-                } else {
-                    System.out.println("Failed to start new worker process.");
+            // Only the worker the job is assigned to may finish it; its running set is the
+            // worker side of the assignment index and job.assignedWorkerId the job side.
+            WorkerInfo worker = workers.get(workerId);
+            if (worker == null || !scheduler.jobCompleted(worker, completedJobId, executionTime)) {
+                System.out.println("Job " + completedJobId + " is not assigned to worker " + workerId);
+                return;
+            }
+
+            JobInfo completedJob = jobs.get(completedJobId);
+            if (completedJob == null || !completedJob.runsOn(workerId)) {
+                System.out.println("Job " + completedJobId + " not found in jobs map");
+                return;
+            }
+            // While a second attempt runs, an attempt that failed or was beaten to the result just ends.
+            if ((!success || !completedJob.claimResult(workerId)) && completedJob.dropAttempt(workerId)) {
+                System.out.println("Dropped the attempt of job " + completedJobId + " on worker " + workerId
+                        + ", its other attempt carries on");
+                return;
+            }
+            // A job cancelled while it ran keeps its cancelled status and is not billed.
+            boolean finished = completedJob.transition(JobState.PROCESSING,
+                    success ? JobState.COMPLETED : JobState.FAILED);
+            String loser = completedJob.winAttempt(workerId);
+            WorkerInfo loserWorker = loser != null ? workers.get(loser) : null;
+            if (loserWorker != null) {
+                System.out.println("Job " + completedJobId + " finished on worker " + workerId
+                        + " first, stopping its attempt on worker " + loser);
+                loserWorker.send(ControlFrame.Op.CANCEL_JOB, completedJobId);
+            }
+            if (finished) {
+                completedJob.endTime = System.currentTimeMillis();
+                completedJob.executionTime = executionTime;
+
+                double cost = (executionTime / 1000.0) * 0.01;
+                completedJob.cost = String.format("$%.2f", cost);
+                performanceLog.record(new PerformanceMetric(completedJob, executionTime, success));
+                if (success) {
+                    scheduler.recordRuntime(completedJob, executionTime);
                 }
-            } catch (Exception e) {
-                System.out.println("Error creating new worker: " + e.getMessage());
-                e.printStackTrace();
             }
-        }
+            System.out.println("Updated job " + completedJobId + " status to " + completedJob.state());
 
-        private void assignJobToWorker(JobInfo job, WorkerInfo worker) {
-            worker.available = false;
-            worker.currentJob = job.id;
-            job.status = "PROCESSING";
-            job.startTime = System.currentTimeMillis();
-            job.assignedWorkerId = worker.id;
+            jobHistory.put(completedJob);
+            jobs.remove(completedJobId);
+            if (!finished) {
+                return;
+            }
+            journal(completedJob.state().name(), completedJob);
 
-            worker.out.println("PROCESS_JOB");
-            worker.out.println(job.id);
-            worker.out.println(job.pythonPath);
-            worker.out.println(job.dataFolder);
-            worker.out.println(job.outputFolder);
+            jobFinished(completedJob);
         }
 
-        private WorkerInfo selectWorker() {
-            return workers.values().stream()
-                    .filter(w -> w.available)
-                    .min(Comparator.comparingDouble(w -> {
-                        double loadFactor = w.completedJobs > 0 ? (double) w.totalExecutionTime / w.completedJobs : 0;
-                        return loadFactor;
-                    }))
-                    .orElse(null);
+        /** The worker killed a job it was told to cancel, so its slot is free again at once. */
+        private void handleJobStopped(String jobId) {
+            JobInfo job = jobs.get(jobId);
+            if (job != null && job.state() == JobState.PROCESSING && job.runsOn(workerId)) {
+                // Not cancelled here, so the worker gave up on it by itself.
+                handleJobComplete(jobId, false, 0);
+                return;
+            }
+            WorkerInfo worker = workers.get(workerId);
+            if (worker == null || !scheduler.jobStopped(worker, jobId)) {
+                System.out.println("Job " + jobId + " is not assigned to worker " + workerId);
+                return;
+            }
+            System.out.println("Worker " + workerId + " stopped job " + jobId);
+            if (job != null && job.state().isFinished()) {
+                jobHistory.put(job);
+                jobs.remove(jobId);
+            }
+        }
+
+        private void handleWorkerHeartbeat(String workerId) {
+            WorkerInfo worker = workers.get(workerId);
+            if (worker != null) {
+                worker.lastHeartbeat = System.currentTimeMillis();
+            }
         }
     }
 
-    private class WorkerHandler implements Runnable {
-        private String workerId;
-        private Socket workerSocket;
-        private BufferedReader in;
-        private PrintWriter out;
-        private Map<String, WorkerInfo> workers;
-        private Map<String, JobInfo> jobs;
-        private Map<String, JobInfo> jobHistory;
-        private Map<String, List<PerformanceMetric>> performanceMetrics;
-        private Queue<JobInfo> pendingJobs;
-
-        public WorkerHandler(String workerId, Socket socket, Map<String, WorkerInfo> workers,
-                Map<String, JobInfo> jobs, Map<String, JobInfo> jobHistory,
-                Map<String, List<PerformanceMetric>> performanceMetrics,
-                Queue<JobInfo> pendingJobs) {
-            this.workerId = workerId;
-            this.workerSocket = socket;
-            this.workers = workers;
-            this.jobs = jobs;
-            this.jobHistory = jobHistory;
-            this.performanceMetrics = performanceMetrics;
-            this.pendingJobs = pendingJobs;
+    /**
+     * A hung worker can keep its connection open, and its jobs, forever; one that has not sent a
+     * heartbeat for three intervals is taken for failed. It is cut off, so nothing it sends if it comes
+     * back counts, and its jobs are retried ahead of the queue.
+     */
+    private void quarantineSilentWorkers() {
+        long now = System.currentTimeMillis();
+        for (WorkerInfo worker : workers.values()) {
+            long silence = now - worker.lastHeartbeat;
+            if (silence < HEARTBEAT_TIMEOUT) {
+                continue;
+            }
+            System.out.println("Worker " + worker.id + " sent no heartbeat for " + silence + "ms, quarantining it");
+            handleWorkerFailure(worker.id);
+            worker.connection.close();
+            DataChannel channel = workerChannels.remove(worker.id);
             try {
-                this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                this.out = new PrintWriter(socket.getOutputStream(), true);
+                if (channel != null) {
+                    channel.close();
+                }
             } catch (IOException e) {
-                System.out.println("Error setting up worker handler: " + e.getMessage());
+                System.out.println("Error closing data connection of worker " + worker.id + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void handleWorkerFailure(String workerId) {
+        WorkerInfo failedWorker = workers.remove(workerId);
+        if (failedWorker == null) {
+            return;
+        }
+        scheduler.workerFailed(failedWorker);
+        for (String jobId : failedWorker.runningJobs) {
+            JobInfo job = jobs.get(jobId);
+            if (job == null || !failedWorker.releaseSlot(jobId)) {
+                continue;
+            }
+            if (job.state() == JobState.PROCESSING && job.dropAttempt(workerId)) {
+                System.out.println("Worker failed while running an attempt of job " + job.id
+                        + ", its other attempt carries on");
+                continue;
+            }
+            boolean retry = job.retryCount < 3;
+            boolean failed = workerId.equals(job.assignedWorkerId)
+                    && job.transition(JobState.PROCESSING, retry ? JobState.PENDING : JobState.FAILED);
+            if (!failed) {
+                if (job.state().isFinished()) {
+                    // Cancelled while it ran; no completion will arrive for it now.
+                    jobHistory.put(job);
+                    jobs.remove(jobId);
+                }
+                continue;
+            }
+            System.out.println("Worker failed while processing job " + job.id);
+            if (retry) {
+                job.retryCount++;
+                journal("RETRIED", job);
+                scheduler.requeue(job);
+                System.out.println("Resubmitting job " + job.id + " (attempt " + job.retryCount + ")");
+            } else {
+                job.endTime = System.currentTimeMillis();
+                jobHistory.put(job);
+                jobs.remove(jobId);
+                journal("FAILED", job);
+                System.out.println("Job " + job.id + " failed after " + job.retryCount + " attempts");
+                jobFinished(job);
+            }
+        }
+    }
+
+    private boolean cancelShard(JobInfo shard) {
+        JobState previous = shard.moveTo(JobState.CANCELLED);
+        if (previous == null) {
+            return false;
+        }
+        shard.endTime = System.currentTimeMillis();
+        stopJob(shard, previous);
+        journal("CANCELLED", shard);
+        jobFinished(shard);
+        return true;
+    }
+
+    /** Takes a job that was just cancelled off the queue, or tells its worker to stop running it. */
+    private void stopJob(JobInfo job, JobState previous) {
+        if (previous == JobState.PENDING) {
+            scheduler.remove(job);
+            return;
+        }
+        // A job assigned a moment ago may not name its worker yet; the scheduler stops it then.
+        for (String workerId : new String[] {job.assignedWorkerId, job.speculativeWorkerId}) {
+            WorkerInfo worker = workerId != null ? workers.get(workerId) : null;
+            if (worker != null) {
+                worker.send(ControlFrame.Op.CANCEL_JOB, job.id);
             }
         }
+    }
+
+    /** Frees the staged inputs of a job that has finished for good, or finishes its parent. */
+    private void jobFinished(JobInfo job) {
+        if (!job.isShard() || job.parent.batch) {
+            releaseInputs(job);
+        }
+        if (job.isShard()) {
+            shardFinished(job);
+        }
+    }
+
+    private void shardFinished(JobInfo shard) {
+        JobInfo parent = shard.parent;
+        if (parent.state().isFinished()) {
+            return;
+        }
+
+        long startTime = Long.MAX_VALUE;
+        long endTime = 0;
+        long executionTime = 0;
+        boolean completed = true;
+        boolean failed = false;
+        for (JobInfo child : parent.children) {
+            if (!child.state().isFinished()) {
+                return;
+            }
+            completed &= child.state() == JobState.COMPLETED;
+            failed |= child.state() == JobState.FAILED;
+            startTime = Math.min(startTime, child.startTime);
+            endTime = Math.max(endTime, child.endTime);
+            executionTime += child.executionTime;
+        }
+
+        // Shards finishing together all get here with the same totals; the one that moves the parent
+        // finishes it.
+        parent.startTime = startTime;
+        parent.endTime = endTime;
+        parent.executionTime = executionTime;
+        parent.cost = String.format("$%.2f", (executionTime / 1000.0) * 0.01);
+        JobState state = completed ? JobState.COMPLETED : failed ? JobState.FAILED : JobState.CANCELLED;
+        if (completed) {
+            parent.transition(JobState.PENDING, JobState.PROCESSING);
+        }
+        if (parent.moveTo(state) == null) {
+            return;
+        }
+        System.out.println((parent.batch ? "Batch " : "Split job ") + parent.id + " finished with status " + state);
+
+        jobHistory.put(parent);
+        jobs.remove(parent.id);
+        journal(state.name(), parent);
+        releaseInputs(parent);
+    }
+
+    private class DataHandler implements Runnable, DataChannel.Handler {
+        private SocketChannel dataSocket;
+        private DataChannel channel;
+        private String owner;
+
+        public DataHandler(SocketChannel socket) {
+            this.dataSocket = socket;
+        }
 
         @Override
         public void run() {
             try {
-                String command;
-                while ((command = in.readLine()) != null) {
-                    System.out.println("Received command from worker " + workerId + ": " + command);
-                    switch (command.toUpperCase()) {
-                        case "WORKER_HEARTBEAT":
-                            handleWorkerHeartbeat(workerId);
-                            break;
-                        case "FILE_TRANSFER_PORT":
-                            String port = in.readLine();
-                            if (port != null) {
-                                JobInfo job = jobs.values().stream()
-                                        .filter(j -> j.assignedWorkerId != null && j.assignedWorkerId.equals(workerId))
-                                        .findFirst()
-                                        .orElse(null);
-                                if (job != null) {
-                                    ClientHandler clientHandler = clientHandlers.get(job.username);
-                                    if (clientHandler != null) {
-                                        clientHandler.out.println("FILE_TRANSFER_PORT");
-                                        clientHandler.out.println(workerSocket.getInetAddress().getHostAddress());
-                                        clientHandler.out.println(port);
-                                        clientHandler.out.flush();
-                                    }
-                                }
-                            }
-                            break;
-                        case "OUTPUT_TRANSFER_PORT":
-                            String outputPort = in.readLine();
-                            if (outputPort != null) {
-                                JobInfo job = jobs.values().stream()
-                                        .filter(j -> j.assignedWorkerId != null && j.assignedWorkerId.equals(workerId))
-                                        .findFirst()
-                                        .orElse(null);
-                                if (job != null) {
-                                    ClientHandler clientHandler = clientHandlers.get(job.username);
-                                    if (clientHandler != null) {
-                                        clientHandler.out.println("OUTPUT_TRANSFER_PORT");
-                                        clientHandler.out.println(workerSocket.getInetAddress().getHostAddress());
-                                        clientHandler.out.println(outputPort);
-                                        clientHandler.out.flush();
-                                    }
-                                }
-                            }
-                            break;
-                        case "JOB_COMPLETE":
-                            String completedJobId = in.readLine();
-                            boolean success = Boolean.parseBoolean(in.readLine());
-                            long executionTime = Long.parseLong(in.readLine());
-                            System.out.println("Job " + completedJobId + " completed with success: " + success
-                                    + ", time: " + executionTime + "ms");
-
-                            JobInfo completedJob = jobs.get(completedJobId);
-                            if (completedJob != null) {
-                                completedJob.status = success ? "COMPLETED" : "FAILED";
-                                completedJob.endTime = System.currentTimeMillis();
-                                completedJob.executionTime = executionTime;
-
-                                double cost = (executionTime / 1000.0) * 0.01;
-                                completedJob.cost = String.format("$%.2f", cost);
-
-                                System.out
-                                        .println("Updated job " + completedJobId + " status to " + completedJob.status);
-
-                                jobHistory.put(completedJobId, completedJob);
-                                jobs.remove(completedJobId);
-
-                                WorkerInfo worker = workers.get(workerId);
-                                if (worker != null) {
-                                    worker.completedJobs++;
-                                    worker.totalExecutionTime += executionTime;
-                                    worker.available = true;
-                                    worker.currentJob = null;
-                                }
-                            } else {
-                                System.out.println("Job " + completedJobId + " not found in jobs map");
-                            }
-                            break;
-                        case "FILES_RECEIVED":
-                            JobInfo job = jobs.values().stream()
-                                    .filter(j -> j.assignedWorkerId != null && j.assignedWorkerId.equals(workerId))
-                                    .findFirst()
-                                    .orElse(null);
-                            if (job != null) {
-                                ClientHandler clientHandler = clientHandlers.get(job.username);
-                                if (clientHandler != null) {
-                                    clientHandler.out.println("FILES_RECEIVED");
-                                    clientHandler.out.flush();
-                                }
-                            }
-                            break;
-                        default:
-                            System.out.println("Unknown command from worker: " + command);
+                channel = new DataChannel(dataSocket);
+                channel.readHello();
+                if ("WORKER".equals(channel.getRole()) && workers.containsKey(channel.getIdentity())) {
+                    owner = channel.getIdentity();
+                    workerChannels.put(owner, channel);
+                } else if ("CLIENT".equals(channel.getRole()) && dataTokens.containsKey(channel.getIdentity())) {
+                    owner = dataTokens.get(channel.getIdentity());
+                    clientChannels.put(owner, channel);
+                } else {
+                    System.out.println("Rejected data connection from " + dataSocket.getRemoteAddress());
+                    return;
+                }
+                channel.acknowledge();
+                System.out.println("Data connection opened for " + channel.getRole().toLowerCase() + " " + owner);
+
+                if ("CLIENT".equals(channel.getRole())) {
+                    Queue<JobInfo> pending = undeliveredOutputs.remove(owner);
+                    if (pending != null) {
+                        pending.forEach(job -> executorService.execute(() -> deliverOutput(job)));
                     }
                 }
+                channel.readFrames(this);
             } catch (IOException e) {
-                System.out.println("Worker disconnected: " + e.getMessage());
-                handleWorkerFailure(workerId);
+                System.out.println("Data connection closed: " + e.getMessage());
             } finally {
+                if (owner != null) {
+                    workerChannels.remove(owner, channel);
+                    clientChannels.remove(owner, channel);
+                }
                 try {
-                    workerSocket.close();
-                    workers.remove(workerId);
+                    dataSocket.close();
                 } catch (IOException e) {
-                    System.out.println("Error closing worker socket: " + e.getMessage());
+                    System.out.println("Error closing data socket: " + e.getMessage());
                 }
             }
         }
 
-        private void handleWorkerHeartbeat(String workerId) {
-            WorkerInfo worker = workers.get(workerId);
-            if (worker != null) {
-                worker.lastHeartbeat = System.currentTimeMillis();
+        @Override
+        public boolean acceptStream(String jobId, String kind) {
+            if ("CLIENT".equals(channel.getRole()) && DataChannel.INPUT.equals(kind)) {
+                return acceptsInputs(jobs.get(jobId));
             }
+            if ("WORKER".equals(channel.getRole()) && DataChannel.OUTPUT.equals(kind)) {
+                JobInfo job = findJob(jobId);
+                return job != null && job.runsOn(owner);
+            }
+            System.out.println("Rejected " + kind + " stream for job " + jobId + " from " + owner);
+            return false;
         }
-    }
 
-    private void handleWorkerFailure(String workerId) {
-        WorkerInfo failedWorker = workers.remove(workerId);
-        if (failedWorker != null && failedWorker.currentJob != null) {
-            JobInfo job = jobs.get(failedWorker.currentJob);
-            if (job != null && "PROCESSING".equals(job.status)) {
-                System.out.println("Worker failed while processing job " + job.id);
-                if (job.retryCount < 3) {
-                    job.retryCount++;
-                    job.status = "PENDING";
-                    pendingJobs.add(job);
-                    System.out.println("Resubmitting job " + job.id + " (attempt " + job.retryCount + ")");
+        /** Whether the client may still upload the inputs of the job: theirs, its own staging root, not yet staged. */
+        private boolean acceptsInputs(JobInfo job) {
+            return job != null && owner.equals(job.username) && stagingRoot(job) == job && !job.inputsStaged
+                    && job.state() == JobState.PENDING;
+        }
+
+        @Override
+        public File openFile(String jobId, String kind, String path) throws IOException {
+            if ("CLIENT".equals(channel.getRole()) && DataChannel.INPUT.equals(kind)) {
+                JobInfo job = jobs.get(jobId);
+                if (!acceptsInputs(job) || !job.inputHashes.containsKey(path)) {
+                    return null;
+                }
+                return DataChannel.resolve(inputsDir(job), path);
+            }
+            if ("WORKER".equals(channel.getRole()) && DataChannel.OUTPUT.equals(kind)) {
+                JobInfo job = findJob(jobId);
+                if (job == null || !job.runsOn(owner) || !job.claimResult(owner)) {
+                    return null;
+                }
+                return DataChannel.resolve(outputsDir(job), path);
+            }
+            return null;
+        }
+
+        @Override
+        public void streamFinished(String jobId, String kind, boolean complete) {
+            JobInfo job = findJob(jobId);
+            if (job == null) {
+                return;
+            }
+            if (DataChannel.INPUT.equals(kind) && "CLIENT".equals(channel.getRole())) {
+                if (acceptsInputs(job)) {
+                    inputsReceived(job, complete && verifyInputs(job));
+                }
+            } else if (DataChannel.OUTPUT.equals(kind) && "WORKER".equals(channel.getRole())
+                    && job.holdsResult(owner)) {
+                if (complete) {
+                    deliverOutput(job);
                 } else {
-                    job.status = "FAILED";
-                    System.out.println("Job " + job.id + " failed after " + job.retryCount + " attempts");
+                    System.out.println("Incomplete output received for job " + job.id);
+                    deleteDirectory(outputsDir(job));
                 }
             }
         }
     }
 
+    private JobInfo findJob(String jobId) {
+        JobInfo job = jobs.get(jobId);
+        return job != null ? job : jobHistory.get(jobId);
+    }
+
+    /** Shards of a split job share their parent's staging directory; the jobs of a batch have their own. */
+    private JobInfo stagingRoot(JobInfo job) {
+        return job.isShard() && !job.parent.batch ? job.parent : job;
+    }
+
+    private File inputsDir(JobInfo job) {
+        return new File(new File(STAGING_DIR, stagingRoot(job).id), "inputs");
+    }
+
+    private File outputsDir(JobInfo job) {
+        JobInfo root = stagingRoot(job);
+        return new File(new File(new File(STAGING_DIR, root.id), "outputs"), job.id);
+    }
+
+    private void inputsReceived(JobInfo job, boolean complete) {
+        ClientHandler clientHandler = uploadingClients.remove(job.id);
+        if (!complete || job.state() != JobState.PENDING) {
+            System.out.println("Upload of inputs for job " + job.id + " did not complete");
+            if (job.transition(JobState.PENDING, JobState.FAILED)) {
+                job.endTime = System.currentTimeMillis();
+                jobHistory.put(job);
+                jobs.remove(job.id);
+                journal("FAILED", job);
+                if (job.isShard()) {
+                    // A batch is queued as a whole or not at all.
+                    for (JobInfo sibling : job.parent.children) {
+                        cancelShard(sibling);
+                    }
+                    shardFinished(job);
+                }
+            }
+            releaseInputs(job);
+            if (clientHandler != null) {
+                clientHandler.uploadFinished(job.id, false);
+            }
+            return;
+        }
+
+        if (job.isShard()) {
+            job.inputsStaged = true;
+            journal("STAGED", job);
+            List<JobInfo> batch = batchStaged(job.parent);
+            if (clientHandler != null) {
+                clientHandler.uploadFinished(job.id, true);
+            }
+            batch.forEach(scheduler::submit);
+            return;
+        }
+
+        job.inputsStaged = true;
+        if (job.requestedShards > 1) {
+            splitJob(job);
+        }
+        for (JobInfo shard : job.children) {
+            journal("STAGED", shard);
+        }
+        journalDurably("STAGED", job);
+        if (clientHandler != null) {
+            clientHandler.uploadFinished(job.id, true);
+        }
+
+        if (job.isSplit()) {
+            for (JobInfo shard : job.children) {
+                scheduler.submit(shard);
+            }
+        } else {
+            scheduler.submit(job);
+        }
+    }
+
+    /** Returns the jobs of the batch to queue once the last of them is staged, or nothing before that. */
+    private List<JobInfo> batchStaged(JobInfo batch) {
+        synchronized (batch) {
+            if (batch.inputsStaged || batch.state() != JobState.PENDING) {
+                return Collections.emptyList();
+            }
+            for (JobInfo job : batch.children) {
+                if (!job.inputsStaged) {
+                    return Collections.emptyList();
+                }
+            }
+            batch.inputsStaged = true;
+        }
+        journalDurably("STAGED", batch);
+        System.out.println("Batch " + batch.id + " staged, queueing its " + batch.children.size() + " jobs");
+        return batch.children;
+    }
+
+    private void splitJob(JobInfo job) {
+        File[] dataFiles = new File(inputsDir(job), "data").listFiles(File::isFile);
+        if (dataFiles == null || dataFiles.length == 0) {
+            System.out.println("Job " + job.id + " has no data files to split, running it as a single job");
+            return;
+        }
+        Arrays.sort(dataFiles);
+        Map<String, Long> fileSizes = new LinkedHashMap<>();
+        for (File file : dataFiles) {
+            fileSizes.put(file.getName(), file.length());
+        }
+
+        List<List<String>> partitions = JobSplitter.partitionBySize(fileSizes, job.requestedShards);
+        for (int i = 0; i < partitions.size(); i++) {
+            JobInfo shard = new JobInfo(job.id + "-" + (i + 1), job.username, job.pythonPath, job.dataFolder,
+                    job.outputFolder);
+            shard.parent = job;
+            shard.priority = job.priority;
+            shard.dataFiles = partitions.get(i);
+            shard.inputsStaged = true;
+            shard.inputHashes.put("script/script.py", job.inputHashes.get("script/script.py"));
+            shard.inputSizes.put("script/script.py", job.inputSizes.get("script/script.py"));
+            for (String fileName : shard.dataFiles) {
+                shard.inputHashes.put("data/" + fileName, job.inputHashes.get("data/" + fileName));
+                shard.inputSizes.put("data/" + fileName, job.inputSizes.get("data/" + fileName));
+            }
+            job.children.add(shard);
+        }
+        for (JobInfo shard : job.children) {
+            jobs.put(shard.id, shard);
+        }
+        System.out.println("Split job " + job.id + " into " + job.children.size() + " shards");
+    }
+
+    private boolean verifyInputs(JobInfo job) {
+        File inputs = inputsDir(job);
+        try {
+            for (Map.Entry<String, String> file : job.inputHashes.entrySet()) {
+                File staged = DataChannel.resolve(inputs, file.getKey());
+                if (!staged.isFile() || staged.length() != job.inputSizes.get(file.getKey())) {
+                    System.out.println("Input " + file.getKey() + " of job " + job.id + " is missing or truncated");
+                    return false;
+                }
+                if (!blobCache.contains(file.getValue())) {
+                    if (!file.getValue().equals(DataChannel.sha256(staged))) {
+                        System.out.println("Input " + file.getKey() + " of job " + job.id + " failed its checksum");
+                        return false;
+                    }
+                    blobCache.add(file.getValue(), staged);
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error verifying inputs of job " + job.id + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void sendInputManifest(JobInfo job, WorkerInfo worker) {
+        List<String> manifest = new ArrayList<>();
+        manifest.add(job.id);
+        for (Map.Entry<String, String> file : job.inputHashes.entrySet()) {
+            manifest.add(file.getKey());
+            manifest.add(file.getValue());
+            manifest.add(String.valueOf(job.inputSizes.get(file.getKey())));
+        }
+        worker.send(ControlFrame.Op.INPUT_MANIFEST, manifest.toArray(new String[0]));
+    }
+
+    private void sendJobInputs(JobInfo job, WorkerInfo worker, List<String> paths) {
+        DataChannel channel = workerChannels.get(worker.id);
+        if (channel == null) {
+            System.out.println("No data connection to worker " + worker.id + " for job " + job.id);
+            return;
+        }
+
+        File inputs = inputsDir(job);
+        Map<String, File> files = new LinkedHashMap<>();
+        for (String path : paths) {
+            if (job.inputHashes.containsKey(path)) {
+                files.put(path, new File(inputs, path));
+            }
+        }
+
+        try {
+            long wireBytes = channel.sendFiles(job.id, DataChannel.INPUT, files);
+            System.out.println("Sent " + files.size() + " of " + job.inputHashes.size() + " input files of job "
+                    + job.id + " to worker " + worker.id + " (" + wireBytes + " bytes on the wire)");
+        } catch (IOException e) {
+            System.out.println("Error sending inputs of job " + job.id + " to worker " + worker.id + ": "
+                    + e.getMessage());
+        }
+    }
+
+    private void deliverOutput(JobInfo job) {
+        JobInfo root = stagingRoot(job);
+        File outputs = outputsDir(job);
+        DataChannel channel = clientChannels.get(job.username);
+        if (channel == null) {
+            undeliveredOutputs.computeIfAbsent(job.username, k -> new ConcurrentLinkedQueue<>()).add(job);
+            System.out.println("Client " + job.username + " is offline, holding output of job " + job.id);
+            return;
+        }
+
+        Map<String, File> files = new LinkedHashMap<>();
+        File[] outputFiles = outputs.listFiles(File::isFile);
+        if (outputFiles != null) {
+            for (File file : outputFiles) {
+                files.put(file.getName(), file);
+            }
+        }
+        try {
+            long wireBytes = channel.sendFiles(root.id, DataChannel.OUTPUT, files);
+            System.out.println("Delivered " + files.size() + " output files of job " + job.id + " to " + job.username
+                    + " (" + wireBytes + " bytes on the wire)");
+            deleteDirectory(outputs);
+            outputs.getParentFile().delete();
+            outputs.getParentFile().getParentFile().delete();
+        } catch (IOException e) {
+            System.out.println("Error delivering output of job " + job.id + ": " + e.getMessage());
+            undeliveredOutputs.computeIfAbsent(job.username, k -> new ConcurrentLinkedQueue<>()).add(job);
+        }
+    }
+
+    private void releaseInputs(JobInfo job) {
+        File inputs = inputsDir(job);
+        deleteDirectory(inputs);
+        inputs.getParentFile().delete();
+    }
+
+    private boolean deleteDirectory(File directory) {
+        File[] allContents = directory.listFiles();
+        if (allContents != null) {
+            for (File file : allContents) {
+                deleteDirectory(file);
+            }
+        }
+        return directory.delete();
+    }
+
+    private void journal(String event, JobInfo job) {
+        if (journal != null) {
+            journal.recordJob(event, job);
+        }
+    }
+
+    private void journalDurably(String event, JobInfo job) {
+        if (journal != null) {
+            journal.recordJobDurably(event, job);
+        }
+    }
+
+    private List<String> snapshotState() {
+        List<String> lines = new ArrayList<>();
+        for (UserInfo user : users.values()) {
+            lines.add(JobJournal.encodeUser(user));
+        }
+        for (JobInfo job : jobs.values()) {
+            lines.add(JobJournal.encodeJob("SNAPSHOT", job));
+            // Finished shards of a running split job may already be archived, but recovery needs them.
+            for (JobInfo shard : job.children) {
+                lines.add(JobJournal.encodeJob("SNAPSHOT", shard));
+            }
+        }
+        for (JobInfo job : jobHistory.recentJobs()) {
+            lines.add(JobJournal.encodeJob("SNAPSHOT", job));
+        }
+        // Anything archived before the list above was taken is missing from it, so it must be on disk
+        // before the journal files holding it are deleted.
+        try {
+            jobHistory.sync();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot sync job history archive", e);
+        }
+        return lines;
+    }
+
+    private List<JobInfo> recoverState() throws IOException {
+        JobJournal.Recovery recovery = journal.recover();
+        users.putAll(recovery.users);
+        for (JobInfo job : recovery.jobs.values()) {
+            if (job.state() == JobState.PENDING || job.state() == JobState.PROCESSING) {
+                jobs.put(job.id, job);
+            } else {
+                jobHistory.put(job);
+                if (outputsDir(job).isDirectory()) {
+                    undeliveredOutputs.computeIfAbsent(job.username, k -> new ConcurrentLinkedQueue<>()).add(job);
+                }
+            }
+        }
+
+        // Workers do not survive a server restart, so anything that was running is retried.
+        List<JobInfo> requeue = new ArrayList<>();
+        for (JobInfo job : new ArrayList<>(jobs.values())) {
+            if (job.isSplit()) {
+                continue;
+            }
+            if (job.state() == JobState.PROCESSING) {
+                job.retryCount++;
+                job.transition(JobState.PROCESSING, JobState.PENDING);
+            }
+            boolean queued = !job.isShard() || !job.parent.batch || job.parent.inputsStaged;
+            if (queued && job.inputsStaged && inputsDir(job).isDirectory() && job.retryCount <= 3) {
+                job.assignedWorkerId = null;
+                requeue.add(job);
+                continue;
+            }
+            job.moveTo(JobState.FAILED);
+            job.endTime = System.currentTimeMillis();
+            jobHistory.put(job);
+            jobs.remove(job.id);
+            journal.recordJob("FAILED", job);
+            if (stagingRoot(job) == job) {
+                releaseInputs(job);
+            }
+        }
+        for (JobInfo job : new ArrayList<>(jobs.values())) {
+            if (job.isSplit()) {
+                shardFinished(job.children.get(0));
+            }
+        }
+        System.out.println("Requeued " + requeue.size() + " jobs recovered from the journal");
+        return requeue;
+    }
+
     public static void main(String[] args) {
-        MSPServer server = new MSPServer();
+        boolean journaling = !Arrays.asList(args).contains("--no-journal");
+        boolean virtualThreads = Arrays.asList(args).contains("--virtual-threads");
+        double speculationMultiple = Double.parseDouble(
+                option(args, "--speculate=", String.valueOf(DEFAULT_SPECULATION_MULTIPLE)));
+        int minWorkers = Integer.parseInt(option(args, "--min-workers=", String.valueOf(DEFAULT_MIN_WORKERS)));
+        int maxWorkers = Integer.parseInt(option(args, "--max-workers=", String.valueOf(DEFAULT_MAX_WORKERS)));
+        MSPServer server = new MSPServer(journaling, virtualThreads, speculationMultiple, minWorkers, maxWorkers);
+        server.scheduler.setLocalityWait(
+                Long.parseLong(option(args, "--locality-wait=", String.valueOf(DEFAULT_LOCALITY_WAIT))));
+        server.scheduler.setShortestFirst("sjf".equals(option(args, "--policy=", "fifo")));
+        server.scheduler.setDefaultMaxRunning(Integer.parseInt(option(args, "--max-running-per-user=", "0")));
+        for (String arg : args) {
+            // --share=<user>:<weight>[:<max running jobs>]
+            if (arg.startsWith("--share=")) {
+                String[] share = arg.substring("--share=".length()).split(":");
+                server.scheduler.setShare(share[0], Integer.parseInt(share[1]),
+                        share.length > 2 ? Integer.parseInt(share[2]) : 0);
+            }
+        }
         server.start();
         try {
             Thread.currentThread().join();
@@ -592,33 +1375,12 @@ public class MSPServer {
         }
     }
 
-    private static class JobInfo {
-        String id;
-        String username;
-        String status;
-        long startTime;
-        long endTime;
-        long executionTime;
-        String cost;
-        String assignedWorkerId;
-        String pythonPath;
-        String dataFolder;
-        String outputFolder;
-        int retryCount;
-
-        JobInfo(String id, String username, String pythonPath, String dataFolder, String outputFolder) {
-            this.id = id;
-            this.username = username;
-            this.pythonPath = pythonPath;
-            this.dataFolder = dataFolder;
-            this.outputFolder = outputFolder;
-            this.status = "PENDING";
-            this.startTime = System.currentTimeMillis();
-            this.endTime = -1;
-            this.executionTime = 0;
-            this.cost = "$0.00";
-            this.assignedWorkerId = null;
-            this.retryCount = 0;
+    private static String option(String[] args, String name, String defaultValue) {
+        for (String arg : args) {
+            if (arg.startsWith(name)) {
+                return arg.substring(name.length());
+            }
         }
+        return defaultValue;
     }
 }
\ No newline at end of file
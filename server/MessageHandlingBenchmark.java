@@ -0,0 +1,185 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Times what the server does for a status check, a cancel and a JOB_COMPLETE while 1,000, 10,000 and
+ * 100,000 jobs are active, half of them running on 100 workers and half queued. Each message is
+ * handled the way the client and worker handlers do it, against the same jobs map, scheduler and
+ * assignment index (each worker's running set and the job's assigned worker), less the journal and
+ * performance log writes. The cost of each should not grow with the number of active jobs.
+ *
+ * Usage: java MessageHandlingBenchmark [operations]
+ */
+public class MessageHandlingBenchmark {
+    private static final int WORKERS = 100;
+    private static final int USERS = 10;
+
+    private final Map<String, WorkerInfo> workers = new ConcurrentHashMap<>();
+    private final Map<String, JobInfo> jobs = new ConcurrentHashMap<>();
+    private final JobScheduler scheduler = new JobScheduler(workers);
+    private final BlockingQueue<JobInfo> running = new LinkedBlockingQueue<>();
+    private final List<JobInfo> queued = new ArrayList<>();
+    private final JobHistory jobHistory;
+    private int nextId;
+
+    MessageHandlingBenchmark(File historyDir) throws IOException {
+        jobHistory = new JobHistory(historyDir, 10000, 24L * 60 * 60 * 1000);
+        scheduler.setAssignmentListener((job, worker) -> running.add(job));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        PrintStream out = System.out;
+        out.println(String.format("%8s %10s %10s %10s", "active", "status", "cancel", "complete"));
+        // The server logs every message it handles; printing them would be most of what is timed.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        // The first run only warms up the JIT.
+        int[] sizes = {10000, 1000, 10000, 100000};
+        for (int i = 0; i < sizes.length; i++) {
+            double[] times;
+            File historyDir = Files.createTempDirectory("history").toFile();
+            MessageHandlingBenchmark benchmark = new MessageHandlingBenchmark(historyDir);
+            try {
+                benchmark.fill(sizes[i]);
+                int count = Math.min(operations, sizes[i] / 4);
+                times = new double[] {benchmark.measureStatus(count), benchmark.measureCancel(count),
+                        benchmark.measureComplete(count)};
+            } finally {
+                benchmark.scheduler.shutdown();
+                deleteDirectory(historyDir);
+            }
+            if (i > 0) {
+                out.println(String.format("%8d %7.0f ns %7.0f ns %7.0f ns", sizes[i], times[0], times[1], times[2]));
+            }
+        }
+    }
+
+    /** Starts half of {@code active} jobs on the workers and leaves the other half queued behind them. */
+    void fill(int active) throws InterruptedException {
+        for (int i = 0; i < WORKERS; i++) {
+            WorkerInfo worker = new WorkerInfo("worker" + i, null) {
+                @Override
+                void send(ControlFrame.Op op, String... args) {
+                }
+            };
+            workers.put(worker.id, worker);
+            scheduler.capacityChanged(worker, Math.max(active / 2 / WORKERS, 1));
+        }
+        scheduler.start();
+        int slots = Math.max(active / 2 / WORKERS, 1) * WORKERS;
+        for (int i = 0; i < slots; i++) {
+            scheduler.submit(newJob());
+        }
+        while (running.size() < slots) {
+            Thread.sleep(10);
+        }
+        while (jobs.size() < active) {
+            JobInfo job = newJob();
+            queued.add(job);
+            scheduler.submit(job);
+        }
+    }
+
+    private JobInfo newJob() {
+        String id = String.valueOf(nextId++);
+        JobInfo job = new JobInfo(id, "user" + nextId % USERS, "script.py", "data", "output");
+        jobs.put(id, job);
+        return job;
+    }
+
+    /** Nanoseconds per CHECK_STATUS of a random active job. */
+    double measureStatus(int count) {
+        List<String> ids = new ArrayList<>(jobs.keySet());
+        Random random = new Random(318);
+        String[] asked = new String[count];
+        for (int i = 0; i < count; i++) {
+            asked[i] = ids.get(random.nextInt(ids.size()));
+        }
+        int found = 0;
+        long start = System.nanoTime();
+        for (String jobId : asked) {
+            JobInfo job = jobs.get(jobId);
+            if (job == null) {
+                job = jobHistory.get(jobId);
+            }
+            if (job != null && job.state() != null) {
+                found++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (found != count) {
+            throw new IllegalStateException("Lost track of " + (count - found) + " jobs");
+        }
+        return (double) elapsed / count;
+    }
+
+    /** Nanoseconds per CANCEL_JOB of a queued job, taking it off the queue. */
+    double measureCancel(int count) {
+        Collections.shuffle(queued, new Random(318));
+        long start = System.nanoTime();
+        for (JobInfo job : queued.subList(0, count)) {
+            JobInfo cancelled = jobs.get(job.id);
+            JobState previous = cancelled.moveTo(JobState.CANCELLED);
+            if (previous == null) {
+                continue;
+            }
+            cancelled.endTime = System.currentTimeMillis();
+            if (previous == JobState.PENDING) {
+                scheduler.remove(cancelled);
+            } else {
+                WorkerInfo worker = workers.get(cancelled.assignedWorkerId);
+                if (worker != null) {
+                    worker.send(ControlFrame.Op.CANCEL_JOB, cancelled.id);
+                }
+            }
+        }
+        return (double) (System.nanoTime() - start) / count;
+    }
+
+    /**
+     * Nanoseconds per JOB_COMPLETE of a running job: freeing its slot, finishing it and moving it to the
+     * history. The scheduler thread starts a queued job in each freed slot meanwhile, as it would live.
+     */
+    double measureComplete(int count) throws InterruptedException {
+        List<JobInfo> completing = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            completing.add(running.take());
+        }
+        long start = System.nanoTime();
+        for (JobInfo completed : completing) {
+            String workerId = completed.assignedWorkerId;
+            WorkerInfo worker = workers.get(workerId);
+            if (worker == null || !scheduler.jobCompleted(worker, completed.id, 1000)) {
+                throw new IllegalStateException("Job " + completed.id + " is not assigned to worker " + workerId);
+            }
+            JobInfo job = jobs.get(completed.id);
+            if (job == null || !job.runsOn(workerId) || (!job.claimResult(workerId) && job.dropAttempt(workerId))) {
+                continue;
+            }
+            if (job.transition(JobState.PROCESSING, JobState.COMPLETED)) {
+                job.endTime = System.currentTimeMillis();
+                job.executionTime = 1000;
+                scheduler.recordRuntime(job, 1000);
+            }
+            job.winAttempt(workerId);
+            jobHistory.put(job);
+            jobs.remove(job.id);
+        }
+        return (double) (System.nanoTime() - start) / count;
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteDirectory(file);
+            }
+        }
+        directory.delete();
+    }
+}
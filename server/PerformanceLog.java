@@ -0,0 +1,50 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of every finished job run, one {@link PerformanceMetric} per line. The server
+ * learns run times back from it after a restart, and SchedulerSimulation replays it to compare
+ * scheduling policies on real load.
+ */
+public class PerformanceLog {
+    private final File file;
+    private Writer writer;
+
+    public PerformanceLog(File file) throws IOException {
+        this.file = file;
+        file.getParentFile().mkdirs();
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+
+    public synchronized void record(PerformanceMetric metric) {
+        try {
+            writer.write(metric.encode());
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("Error writing to performance log " + file + ": " + e.getMessage());
+        }
+    }
+
+    /** Passes every metric in the log to {@code consumer}, oldest first, skipping lines it cannot read. */
+    public static void read(File file, Consumer<PerformanceMetric> consumer) throws IOException {
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                PerformanceMetric metric;
+                try {
+                    metric = PerformanceMetric.decode(line);
+                } catch (RuntimeException e) {
+                    // A line torn by a crash mid-write.
+                    continue;
+                }
+                consumer.accept(metric);
+            }
+        }
+    }
+}
@@ -1,13 +1,57 @@
-import java.io.Serializable;
-
-public class PerformanceMetric implements Serializable {
-    long timestamp;
-    long executionTime;
-    boolean success;
-
-    public PerformanceMetric(long timestamp, long executionTime, boolean success) {
-        this.timestamp = timestamp;
-        this.executionTime = executionTime;
-        this.success = success;
-    }
-} 
\ No newline at end of file
+import java.io.Serializable;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One finished run of a job, as written to the performance log: when it was queued, started and
+ * finished, how long it ran, and what it ran on, so its run time can be learned and replayed.
+ */
+public class PerformanceMetric implements Serializable {
+    long timestamp;
+    long executionTime;
+    boolean success;
+    String username;
+    String script;
+    long inputBytes;
+    long queuedTime;
+    long startTime;
+    int priority;
+
+    public PerformanceMetric(long timestamp, long executionTime, boolean success) {
+        this.timestamp = timestamp;
+        this.executionTime = executionTime;
+        this.success = success;
+    }
+
+    public PerformanceMetric(JobInfo job, long executionTime, boolean success) {
+        this(System.currentTimeMillis(), executionTime, success);
+        this.username = job.username;
+        this.script = RuntimeEstimates.script(job);
+        this.inputBytes = RuntimeEstimates.inputBytes(job);
+        this.queuedTime = job.queuedTime;
+        this.startTime = job.startTime;
+        this.priority = job.priority;
+    }
+
+    /** Formats the metric as one tab-separated line of the performance log. */
+    public String encode() {
+        return String.join("\t", String.valueOf(timestamp), String.valueOf(executionTime), String.valueOf(success),
+                URLEncoder.encode(username, StandardCharsets.UTF_8), script != null ? script : "-",
+                String.valueOf(inputBytes), String.valueOf(queuedTime), String.valueOf(startTime),
+                String.valueOf(priority));
+    }
+
+    public static PerformanceMetric decode(String line) {
+        String[] fields = line.split("\t");
+        PerformanceMetric metric = new PerformanceMetric(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                Boolean.parseBoolean(fields[2]));
+        metric.username = URLDecoder.decode(fields[3], StandardCharsets.UTF_8);
+        metric.script = "-".equals(fields[4]) ? null : fields[4];
+        metric.inputBytes = Long.parseLong(fields[5]);
+        metric.queuedTime = Long.parseLong(fields[6]);
+        metric.startTime = Long.parseLong(fields[7]);
+        metric.priority = Integer.parseInt(fields[8]);
+        return metric;
+    }
+}
@@ -0,0 +1,195 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+
+public class PythonPool {
+    private static final String RUNNER_SCRIPT = "msp_pool.py";
+    private static final String OPT_OUT_MARKER = "msp: no-pool";
+    private static final int OPT_OUT_SCAN_LINES = 20;
+    private static final long ACQUIRE_TIMEOUT = 30000;
+
+    private final File runner;
+    private final int maxJobsPerProcess;
+    private final List<String> preloadModules;
+    private final BlockingQueue<Interpreter> idle = new LinkedBlockingQueue<>();
+    private final ExecutorService replacer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "python-pool-replacer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    private PythonPool(File runner, int maxJobsPerProcess, List<String> preloadModules) {
+        this.runner = runner;
+        this.maxJobsPerProcess = maxJobsPerProcess;
+        this.preloadModules = preloadModules;
+    }
+
+    public static PythonPool create(int size, int maxJobsPerProcess, List<String> preloadModules) {
+        File runner = new File(RUNNER_SCRIPT);
+        if (!runner.isFile()) {
+            System.out.println("Python pool runner " + runner.getAbsolutePath() + " not found, using fork-per-job");
+            return null;
+        }
+
+        PythonPool pool = new PythonPool(runner, maxJobsPerProcess, preloadModules);
+        List<Interpreter> starting = new ArrayList<>();
+        try {
+            for (int i = 0; i < size; i++) {
+                starting.add(pool.launch());
+            }
+            for (Interpreter interpreter : starting) {
+                interpreter.awaitReady();
+                pool.idle.add(interpreter);
+            }
+        } catch (IOException e) {
+            System.out.println("Python pool unavailable, using fork-per-job: " + e.getMessage());
+            starting.forEach(Interpreter::destroy);
+            return null;
+        }
+        System.out.println("Started " + size + " pooled Python interpreters (preloaded: " + preloadModules + ")");
+        return pool;
+    }
+
+    public static boolean accepts(File script) {
+        try (BufferedReader reader = new BufferedReader(new FileReader(script))) {
+            String line;
+            for (int i = 0; i < OPT_OUT_SCAN_LINES && (line = reader.readLine()) != null; i++) {
+                if (line.startsWith("#") && line.contains(OPT_OUT_MARKER)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Runs the script in a forked child of a pooled interpreter; {@code started} is given the child's pid. */
+    public int run(File script, File workDir, File logFile, LongConsumer started, String... args)
+            throws IOException, InterruptedException {
+        Interpreter interpreter = idle.poll(ACQUIRE_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (interpreter == null) {
+            throw new IOException("No pooled Python interpreter became available");
+        }
+
+        try {
+            int exitCode = interpreter.run(script, workDir, logFile, started, args);
+            release(interpreter);
+            return exitCode;
+        } catch (IOException e) {
+            System.out.println("Pooled Python interpreter crashed: " + e.getMessage());
+            replace(interpreter);
+            throw e;
+        }
+    }
+
+    public void shutdown() {
+        closed = true;
+        replacer.shutdownNow();
+        Interpreter interpreter;
+        while ((interpreter = idle.poll()) != null) {
+            interpreter.close();
+        }
+    }
+
+    private void release(Interpreter interpreter) {
+        if (interpreter.jobsRun >= maxJobsPerProcess) {
+            System.out.println("Recycling pooled Python interpreter after " + interpreter.jobsRun + " jobs");
+            replace(interpreter);
+        } else if (closed) {
+            interpreter.close();
+        } else {
+            idle.add(interpreter);
+        }
+    }
+
+    private void replace(Interpreter interpreter) {
+        interpreter.close();
+        if (closed) {
+            return;
+        }
+        replacer.execute(() -> {
+            try {
+                Interpreter replacement = launch();
+                replacement.awaitReady();
+                idle.add(replacement);
+            } catch (IOException e) {
+                System.out.println("Failed to start replacement Python interpreter: " + e.getMessage());
+            }
+        });
+    }
+
+    private Interpreter launch() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add("python3");
+        command.add(runner.getAbsolutePath());
+        command.addAll(preloadModules);
+        ProcessBuilder processBuilder = new ProcessBuilder(command);
+        processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        return new Interpreter(processBuilder.start());
+    }
+
+    private static class Interpreter {
+        private final Process process;
+        private final BufferedWriter requests;
+        private final BufferedReader replies;
+        private int jobsRun;
+
+        Interpreter(Process process) {
+            this.process = process;
+            this.requests = new BufferedWriter(
+                    new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+            this.replies = new BufferedReader(
+                    new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void awaitReady() throws IOException {
+            String reply = replies.readLine();
+            if (!"READY".equals(reply)) {
+                destroy();
+                throw new IOException("Interpreter did not start (" + reply + ")");
+            }
+        }
+
+        int run(File script, File workDir, File logFile, LongConsumer started, String... args) throws IOException {
+            StringBuilder request = new StringBuilder("RUN");
+            request.append('\t').append(script.getAbsolutePath());
+            request.append('\t').append(workDir.getAbsolutePath());
+            request.append('\t').append(logFile.getAbsolutePath());
+            for (String arg : args) {
+                request.append('\t').append(arg);
+            }
+            requests.write(request.append('\n').toString());
+            requests.flush();
+            jobsRun++;
+
+            String child = replies.readLine();
+            if (child == null || !child.startsWith("STARTED\t")) {
+                throw new IOException("Unexpected reply from interpreter: " + child);
+            }
+            started.accept(Long.parseLong(child.substring("STARTED\t".length())));
+            String exited = replies.readLine();
+            if (exited == null || !exited.startsWith("EXIT\t")) {
+                throw new IOException("Unexpected reply from interpreter: " + exited);
+            }
+            return Integer.parseInt(exited.substring("EXIT\t".length()));
+        }
+
+        void close() {
+            try {
+                requests.write("EXIT\n");
+                requests.flush();
+            } catch (IOException e) {
+                // Interpreter already gone.
+            }
+            destroy();
+        }
+
+        void destroy() {
+            process.destroy();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How long a job is expected to run, learned from the jobs that completed. Run time is taken to be a
+ * fixed start-up cost plus a cost per byte of input, fitted per script by least squares over its past
+ * runs. Each run weighs DECAY times as much as the one after it, so recent runs count most.
+ */
+public class RuntimeEstimates {
+    private static final double DECAY = 0.9;
+    private static final int MIN_SAMPLES = 3;
+    private static final String SCRIPT = "script/script.py";
+
+    /** Decayed sums over the runs of one script, of input bytes x and run time y. */
+    private static class Fit {
+        final double n;
+        final double x;
+        final double y;
+        final double xx;
+        final double xy;
+        final int samples;
+
+        Fit(double n, double x, double y, double xx, double xy, int samples) {
+            this.n = n;
+            this.x = x;
+            this.y = y;
+            this.xx = xx;
+            this.xy = xy;
+            this.samples = samples;
+        }
+
+        Fit add(Fit run) {
+            return new Fit(DECAY * n + run.n, DECAY * x + run.x, DECAY * y + run.y, DECAY * xx + run.xx,
+                    DECAY * xy + run.xy, samples + run.samples);
+        }
+
+        double estimate(long bytes) {
+            double meanX = x / n;
+            double meanY = y / n;
+            double varianceX = xx / n - meanX * meanX;
+            if (varianceX <= 1e-6 * meanX * meanX) {
+                // Every run had about the same input, so there is no slope to fit; scale by size instead.
+                return meanX > 0 ? meanY * bytes / meanX : meanY;
+            }
+            double perByte = Math.max(0, (xy / n - meanX * meanY) / varianceX);
+            return Math.max(0, meanY + perByte * (bytes - meanX));
+        }
+    }
+
+    private final Map<String, Fit> fits = new ConcurrentHashMap<>();
+
+    /** Learns from a run; returns true if it was the one that gave its script an estimate. */
+    public boolean record(JobInfo job, long executionTime) {
+        return record(job.inputHashes.get(SCRIPT), inputBytes(job), executionTime);
+    }
+
+    public boolean record(String script, long inputBytes, long executionTime) {
+        if (script == null) {
+            return false;
+        }
+        double x = inputBytes;
+        Fit run = new Fit(1, x, executionTime, x * x, x * executionTime, 1);
+        return fits.merge(script, run, Fit::add).samples == MIN_SAMPLES;
+    }
+
+    /** Returns the expected run time of the job in ms, or -1 until enough runs of its script were seen. */
+    public long estimate(JobInfo job) {
+        String script = job.inputHashes.get(SCRIPT);
+        Fit fit = script != null ? fits.get(script) : null;
+        if (fit == null || fit.samples < MIN_SAMPLES) {
+            return -1;
+        }
+        return Math.round(fit.estimate(inputBytes(job)));
+    }
+
+    public static String script(JobInfo job) {
+        return job.inputHashes.get(SCRIPT);
+    }
+
+    public static long inputBytes(JobInfo job) {
+        long bytes = 0;
+        for (long size : job.inputSizes.values()) {
+            bytes += size;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,250 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Replays a multi-tenant submission trace against the job queues offline, on a simulated clock and a
+ * fixed number of slots, and reports each user's queue wait percentiles and mean completion time
+ * (wait plus run) under each policy. Run times are learned as the replay goes, the same way the
+ * server learns them, so shortest-first ordering only knows what it would have known live.
+ *
+ * Usage: java SchedulerSimulation [slots] [performance log]
+ *
+ * The performance log is the history/metrics.log the server writes, one finished run per line. Without
+ * one a built-in trace is used: one user dumping 5,000 short and long jobs at once while three others
+ * submit steadily or in bursts.
+ */
+public class SchedulerSimulation {
+    private static final String SCRIPT = "script/script.py";
+
+    interface Policy {
+        void add(JobInfo job);
+
+        /** Takes the job to start next off the queue, or returns null. */
+        JobInfo next();
+
+        void finished(JobInfo job);
+
+        /** Told when a script's run time has just become known. */
+        default void runtimesLearned(RuntimeEstimates estimates) {
+        }
+    }
+
+    static class Fifo implements Policy {
+        private final Deque<JobInfo> queue = new ArrayDeque<>();
+
+        public void add(JobInfo job) {
+            queue.add(job);
+        }
+
+        public JobInfo next() {
+            return queue.poll();
+        }
+
+        public void finished(JobInfo job) {
+        }
+    }
+
+    static class FairShare implements Policy {
+        final FairShareQueue queue = new FairShareQueue();
+
+        public void add(JobInfo job) {
+            queue.add(job);
+        }
+
+        public JobInfo next() {
+            JobInfo job = queue.peek();
+            if (job != null) {
+                queue.started(job);
+            }
+            return job;
+        }
+
+        public void finished(JobInfo job) {
+            queue.finished(job);
+        }
+
+        public void runtimesLearned(RuntimeEstimates estimates) {
+            queue.updateExpectedRuntimes(estimates::estimate);
+        }
+    }
+
+    static class Result {
+        final Map<String, List<Long>> waits = new TreeMap<>();
+        final Map<String, List<Long>> completions = new TreeMap<>();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int slots = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        List<PerformanceMetric> trace = new ArrayList<>();
+        boolean builtIn = args.length < 2;
+        if (builtIn) {
+            trace = builtInTrace();
+        } else {
+            PerformanceLog.read(new File(args[1]), trace::add);
+        }
+        trace.sort(Comparator.comparingLong(run -> run.queuedTime));
+        System.out.println("Replaying " + trace.size() + " jobs on " + slots + " slots");
+
+        report("FIFO", simulate(trace, slots, new Fifo()));
+        report("Fair share", simulate(trace, slots, new FairShare()));
+        if (builtIn) {
+            FairShare capped = new FairShare();
+            capped.queue.setShare("bulk", 1, slots / 2);
+            report("Fair share, bulk capped at " + slots / 2 + " running", simulate(trace, slots, capped));
+        }
+        FairShare shortestFirst = new FairShare();
+        shortestFirst.queue.setShortestFirst(true);
+        report("Fair share, shortest expected job first", simulate(trace, slots, shortestFirst));
+
+        measureDispatch(100000, 100);
+    }
+
+    static List<PerformanceMetric> builtInTrace() {
+        Random random = new Random(318);
+        List<PerformanceMetric> trace = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // Mostly quick conversions, with a long model fit every so often.
+            trace.add(random.nextInt(10) < 8 ? run(random, 0, "bulk", "convert", 5000, 15000, 1000)
+                    : run(random, 0, "bulk", "fit", 50000, 150000, 10000));
+        }
+        long hour = 3600000;
+        for (String user : new String[] {"analyst", "student"}) {
+            for (long t = 0; t < 2 * hour; t += (long) (-Math.log(1 - random.nextDouble()) * 60000)) {
+                trace.add(random.nextInt(10) < 8 ? run(random, t, user, "query", 3000, 10000, 2000)
+                        : run(random, t, user, "train", 50000, 200000, 10000));
+            }
+        }
+        for (long t = 10 * 60000; t < 2 * hour; t += 30 * 60000) {
+            for (int i = 0; i < 100; i++) {
+                trace.add(run(random, t, "sweep", "sweep", 10000, 20000, 0));
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * A run of {@code script} taking {@code overhead} ms plus a ms per KB of input, within 20%, for a
+     * run time between {@code min} and {@code max} ms.
+     */
+    private static PerformanceMetric run(Random random, long submitted, String user, String script, long min,
+            long max, long overhead) {
+        long kilobytes = min - overhead + (long) (random.nextDouble() * (max - min));
+        long executionTime = (long) ((overhead + kilobytes) * (0.8 + 0.4 * random.nextDouble()));
+        PerformanceMetric metric = new PerformanceMetric(0, executionTime, true);
+        metric.username = user;
+        metric.script = script;
+        metric.inputBytes = kilobytes * 1024;
+        metric.queuedTime = submitted;
+        return metric;
+    }
+
+    static Result simulate(List<PerformanceMetric> trace, int slots, Policy policy) {
+        RuntimeEstimates estimates = new RuntimeEstimates();
+        Map<JobInfo, PerformanceMetric> traced = new HashMap<>();
+        Result result = new Result();
+        PriorityQueue<Object[]> running = new PriorityQueue<>(Comparator.comparingLong(e -> (Long) e[0]));
+        long origin = trace.isEmpty() ? 0 : trace.get(0).queuedTime;
+        int free = slots;
+        int next = 0;
+        int id = 0;
+        while (next < trace.size() || !running.isEmpty()) {
+            long now = Math.min(next < trace.size() ? trace.get(next).queuedTime - origin : Long.MAX_VALUE,
+                    running.isEmpty() ? Long.MAX_VALUE : (Long) running.peek()[0]);
+            while (!running.isEmpty() && (Long) running.peek()[0] <= now) {
+                JobInfo job = (JobInfo) running.poll()[1];
+                PerformanceMetric run = traced.remove(job);
+                if (run.success && estimates.record(job, run.executionTime)) {
+                    policy.runtimesLearned(estimates);
+                }
+                policy.finished(job);
+                free++;
+            }
+            while (next < trace.size() && trace.get(next).queuedTime - origin <= now) {
+                PerformanceMetric run = trace.get(next++);
+                JobInfo job = new JobInfo(String.valueOf(id++), run.username, null, null, null);
+                job.queuedTime = run.queuedTime - origin;
+                job.priority = run.priority;
+                if (run.script != null) {
+                    job.inputHashes.put(SCRIPT, run.script);
+                }
+                job.inputSizes.put(SCRIPT, run.inputBytes);
+                job.expectedRuntime = estimates.estimate(job);
+                traced.put(job, run);
+                policy.add(job);
+            }
+            JobInfo job;
+            while (free > 0 && (job = policy.next()) != null) {
+                long runTime = traced.get(job).executionTime;
+                result.waits.computeIfAbsent(job.username, k -> new ArrayList<>()).add(now - job.queuedTime);
+                result.completions.computeIfAbsent(job.username, k -> new ArrayList<>())
+                        .add(now + runTime - job.queuedTime);
+                running.add(new Object[] {now + runTime, job});
+                free--;
+            }
+        }
+        return result;
+    }
+
+    static void report(String policy, Result result) {
+        System.out.println();
+        System.out.println(policy + " (queue wait and completion time in seconds)");
+        int width = 10;
+        for (String user : result.waits.keySet()) {
+            width = Math.max(width, user.length());
+        }
+        String columns = "  %-" + width + "s %6";
+        System.out.println(String.format(columns + "s %8s %8s %8s %8s %10s", "user", "jobs", "p50", "p95", "p99",
+                "max", "mean done"));
+        long total = 0;
+        int jobs = 0;
+        for (Map.Entry<String, List<Long>> user : result.waits.entrySet()) {
+            List<Long> sorted = new ArrayList<>(user.getValue());
+            Collections.sort(sorted);
+            long completion = 0;
+            for (long time : result.completions.get(user.getKey())) {
+                completion += time;
+            }
+            total += completion;
+            jobs += sorted.size();
+            System.out.println(String.format(columns + "d %8.1f %8.1f %8.1f %8.1f %10.1f", user.getKey(),
+                    sorted.size(), percentile(sorted, 50), percentile(sorted, 95), percentile(sorted, 99),
+                    sorted.get(sorted.size() - 1) / 1000.0, completion / 1000.0 / sorted.size()));
+        }
+        System.out.println(String.format(columns + "d %46.1f", "all", jobs, total / 1000.0 / Math.max(jobs, 1)));
+    }
+
+    static double percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(index, 0)) / 1000.0;
+    }
+
+    /** Times starting, finishing and submitting a job while {@code queued} jobs of {@code users} users wait. */
+    static void measureDispatch(int queued, int users) {
+        FairShare policy = new FairShare();
+        Random random = new Random(318);
+        for (int i = 0; i < queued; i++) {
+            policy.add(randomJob(i, users, random));
+        }
+
+        int operations = queued / 2;
+        long elapsed = 0;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                policy.finished(policy.next());
+                policy.add(randomJob(queued + round * operations + i, users, random));
+            }
+            elapsed = System.nanoTime() - start;
+        }
+        System.out.println();
+        System.out.println(String.format("Dispatch with %d jobs of %d users queued: %.0f ns per start, finish"
+                + " and submit", policy.queue.size(), users, (double) elapsed / operations));
+    }
+
+    private static JobInfo randomJob(int id, int users, Random random) {
+        JobInfo job = new JobInfo(String.valueOf(id), "user" + random.nextInt(users), null, null, null);
+        job.queuedTime = id;
+        job.priority = random.nextInt(3);
+        return job;
+    }
+}
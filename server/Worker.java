@@ -1,40 +1,91 @@
 import java.io.*;
 import java.net.Socket;
-import java.net.ServerSocket;
-import java.net.SocketTimeoutException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Runs jobs for the server.
+ *
+ * Usage: java Worker [slots] [pool|fork] [work directory]
+ *
+ * Job directories and the blob cache go under the work directory, the current one by default.
+ */
 public class Worker implements Runnable {
     private final String workerId;
     private final Socket socket;
-    private boolean available;
-    private Job currentJob;
+    private final int slots;
+    private final ExecutorService jobExecutor;
+    private final Map<String, Job> runningJobs = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Boolean>> jobInputs = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, String>> expectedInputs = new ConcurrentHashMap<>();
+    private final Map<String, ProcessHandle> jobProcesses = new ConcurrentHashMap<>();
+    private final Set<String> cancelledJobs = ConcurrentHashMap.newKeySet();
     private static final String SERVER_HOST = "131.217.170.115";
     private static final int SERVER_PORT = 8889;
-    private BufferedReader in;
-    private PrintWriter out;
+    private static final int DATA_PORT = 8890;
+    private static final long INPUT_TIMEOUT = 30000;
+    private static final long CANCEL_GRACE_PERIOD = 5000;
+    private static final String BLOB_CACHE_DIR = "blob_cache";
+    private static final long BLOB_CACHE_BYTES = 2L * 1024 * 1024 * 1024;
+    private final File workDir;
+    private final BlobCache blobCache;
+    private DataChannel dataChannel;
+    private DataInputStream in;
+    private DataOutputStream out;
     private static final long HEARTBEAT_INTERVAL = 5000;
+    private static final int POOL_MAX_JOBS_PER_PROCESS = 50;
+    private static final List<String> POOL_PRELOAD_MODULES = Arrays.asList("pandas", "numpy");
+    private final PythonPool pythonPool;
     private volatile boolean running = true;
 
-    public Worker(Socket socket) {
+    /**
+     * Job directories and the blob cache go under {@code workDir}, which no other worker on the machine
+     * may share: two attempts of one job would write the same job directory, and two caches would evict
+     * each other's files.
+     */
+    public Worker(Socket socket, int slots, PythonPool pythonPool, File workDir) {
         this.workerId = "Worker-" + UUID.randomUUID().toString().substring(0, 8);
         this.socket = socket;
-        this.available = true;
+        this.slots = slots;
+        this.jobExecutor = Executors.newFixedThreadPool(slots);
+        this.pythonPool = pythonPool;
+        this.workDir = workDir;
+        this.blobCache = new BlobCache(new File(workDir, BLOB_CACHE_DIR), BLOB_CACHE_BYTES);
         try {
-            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.out = new PrintWriter(socket.getOutputStream(), true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
         } catch (IOException e) {
             System.out.println("Error setting up worker streams: " + e.getMessage());
         }
     }
 
     public static void main(String[] args) {
+        int slots = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        boolean usePool = args.length < 2 || !"fork".equalsIgnoreCase(args[1]);
+        File workDir = new File(args.length > 2 ? args[2] : ".");
+        workDir.mkdirs();
         try {
             System.out.println("Connecting to server at " + SERVER_HOST + ":" + SERVER_PORT);
             Socket socket = new Socket(SERVER_HOST, SERVER_PORT);
             System.out.println("Connected to server successfully!");
 
-            Worker worker = new Worker(socket);
+            PythonPool pythonPool = usePool
+                    ? PythonPool.create(slots, POOL_MAX_JOBS_PER_PROCESS, POOL_PRELOAD_MODULES)
+                    : null;
+            Worker worker = new Worker(socket, slots, pythonPool, workDir);
             new Thread(worker).start();
 
         } catch (IOException e) {
@@ -47,25 +98,41 @@ public class Worker implements Runnable {
         try {
             new Thread(this::sendHeartbeats).start();
 
-            String command;
-            while (running && (command = in.readLine()) != null) {
-                System.out.println("Received command: " + command);
-                switch (command.toUpperCase()) {
-                    case "PROCESS_JOB":
-                        processJob();
+            ControlFrame frame;
+            while (running && (frame = ControlFrame.read(in)) != null) {
+                System.out.println("Received command: " + frame.op);
+                switch (frame.op) {
+                    case WORKER_ID:
+                        openDataChannel(frame.arg(0));
+                        send(ControlFrame.Op.WORKER_SLOTS, String.valueOf(slots));
+                        send(new ControlFrame(ControlFrame.Op.CACHED_BLOBS, new ArrayList<>(blobCache.hashes())));
+                        System.out.println("Worker " + workerId + " running with " + slots + " job slots");
+                        break;
+                    case INPUT_MANIFEST:
+                        receiveInputManifest(frame.arg(0), frame.argsFrom(1));
+                        break;
+                    case PROCESS_JOB:
+                        receiveJob(frame.arg(0), frame.arg(1), frame.arg(2), frame.arg(3));
                         break;
-                    case "CANCEL_JOB":
-                        cancelCurrentJob();
+                    case CANCEL_JOB:
+                        cancelJob(frame.arg(0));
                         break;
                     default:
-                        System.out.println("Unknown command received: " + command);
+                        System.out.println("Unknown command received: " + frame.op);
                 }
             }
         } catch (IOException e) {
             System.out.println("Worker " + workerId + " disconnected: " + e.getMessage());
         } finally {
             running = false;
+            jobExecutor.shutdown();
+            if (pythonPool != null) {
+                pythonPool.shutdown();
+            }
             try {
+                if (dataChannel != null) {
+                    dataChannel.close();
+                }
                 socket.close();
             } catch (IOException e) {
                 System.out.println("Error closing worker socket: " + e.getMessage());
@@ -73,10 +140,86 @@ public class Worker implements Runnable {
         }
     }
 
+    private void openDataChannel(String serverWorkerId) throws IOException {
+        dataChannel = DataChannel.connect(SERVER_HOST, DATA_PORT, "WORKER", serverWorkerId);
+        System.out.println("Opened data connection to server port " + DATA_PORT);
+
+        Thread reader = new Thread(() -> {
+            try {
+                dataChannel.readFrames(new DataChannel.Handler() {
+                    @Override
+                    public File openFile(String jobId, String kind, String path) throws IOException {
+                        Map<String, String> expected = expectedInputs.get(jobId);
+                        if (!DataChannel.INPUT.equals(kind) || expected == null || !expected.containsKey(path)) {
+                            return null;
+                        }
+                        return DataChannel.resolve(jobDir(jobId), path);
+                    }
+
+                    @Override
+                    public void streamFinished(String jobId, String kind, boolean complete) {
+                        inputsFor(jobId).complete(complete);
+                    }
+                });
+            } catch (IOException e) {
+                System.out.println("Data connection lost: " + e.getMessage());
+            }
+        }, "data-channel-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void receiveInputManifest(String jobId, List<String> manifest) throws IOException {
+        int fileCount = manifest.size() / 3;
+        File jobDirFile = jobDir(jobId);
+        Map<String, String> missing = new LinkedHashMap<>();
+        for (int i = 0; i < fileCount; i++) {
+            String path = manifest.get(3 * i);
+            String hash = manifest.get(3 * i + 1);
+            if (!blobCache.linkTo(hash, DataChannel.resolve(jobDirFile, path))) {
+                missing.put(path, hash);
+            }
+        }
+        expectedInputs.put(jobId, missing);
+        System.out.println("Job " + jobId + ": " + (fileCount - missing.size()) + " of " + fileCount
+                + " input files found in the local cache");
+
+        List<String> reply = new ArrayList<>();
+        reply.add(jobId);
+        reply.addAll(missing.keySet());
+        send(new ControlFrame(ControlFrame.Op.MISSING_BLOBS, reply));
+    }
+
+    private void cacheReceivedInputs(String jobId, File jobDirFile) throws IOException {
+        Map<String, String> received = expectedInputs.remove(jobId);
+        if (received == null) {
+            return;
+        }
+        List<String> evicted = new ArrayList<>();
+        for (Map.Entry<String, String> file : received.entrySet()) {
+            File input = DataChannel.resolve(jobDirFile, file.getKey());
+            if (!file.getValue().equals(DataChannel.sha256(input))) {
+                throw new IOException("Checksum mismatch for input file " + file.getKey());
+            }
+            evicted.addAll(blobCache.add(file.getValue(), input));
+        }
+        if (!evicted.isEmpty()) {
+            send(new ControlFrame(ControlFrame.Op.BLOBS_EVICTED, evicted));
+        }
+    }
+
+    private File jobDir(String jobId) {
+        return new File(workDir, "job_" + jobId);
+    }
+
+    private CompletableFuture<Boolean> inputsFor(String jobId) {
+        return jobInputs.computeIfAbsent(jobId, id -> new CompletableFuture<>());
+    }
+
     private void sendHeartbeats() {
         while (running) {
             try {
-                out.println("WORKER_HEARTBEAT");
+                send(ControlFrame.Op.WORKER_HEARTBEAT);
                 Thread.sleep(HEARTBEAT_INTERVAL);
             } catch (InterruptedException e) {
                 System.out.println("Heartbeat thread interrupted: " + e.getMessage());
@@ -88,252 +231,185 @@ public class Worker implements Runnable {
         }
     }
 
-    private void processJob() throws IOException {
-        String jobId = null;
-        ServerSocket fileServer = null;
-        try {
-            jobId = in.readLine();
-            String pythonPath = in.readLine();
-            String dataFolder = in.readLine();
-            String outputFolder = in.readLine();
+    private void send(ControlFrame.Op op, String... args) {
+        send(ControlFrame.of(op, args));
+    }
 
+    private void send(ControlFrame frame) {
+        synchronized (out) {
+            try {
+                frame.write(out);
+            } catch (IOException e) {
+                System.out.println("Error sending " + frame.op + " to server: " + e.getMessage());
+            }
+        }
+    }
+
+    private void receiveJob(String jobId, String pythonPath, String dataFolder, String outputFolder) {
+        Job job = new Job(jobId, pythonPath, dataFolder, outputFolder);
+        job.setStatus("QUEUED");
+        runningJobs.put(jobId, job);
+        jobExecutor.execute(() -> {
+            try {
+                processJob(job);
+            } finally {
+                runningJobs.remove(jobId);
+                cancelledJobs.remove(jobId);
+                jobProcesses.remove(jobId);
+                jobInputs.remove(jobId);
+            }
+        });
+    }
+
+    private void processJob(Job job) {
+        String jobId = job.getJobId();
+        String pythonPath = job.getPythonPath();
+        String dataFolder = job.getDataFolder();
+        String outputFolder = job.getOutputFolder();
+        try {
+            checkCancelled(jobId);
+            job.setStatus("PROCESSING");
+            job.setStartTime(LocalDateTime.now());
             System.out.println("\nProcessing job " + jobId);
             System.out.println("Python script: " + pythonPath);
             System.out.println("Data folder: " + dataFolder);
             System.out.println("Output folder: " + outputFolder);
 
-            String jobDir = "job_" + jobId;
-            File jobDirFile = new File(jobDir);
-            if (!jobDirFile.mkdirs()) {
-                throw new IOException("Failed to create job directory: " + jobDir);
+            File jobDirFile = jobDir(jobId);
+            File scriptDir = new File(jobDirFile, "script");
+            File dataDir = new File(jobDirFile, "data");
+            File outputDir = new File(jobDirFile, "output");
+
+            scriptDir.mkdirs();
+            dataDir.mkdirs();
+            outputDir.mkdirs();
+            if (!scriptDir.isDirectory() || !dataDir.isDirectory() || !outputDir.isDirectory()) {
+                throw new IOException("Failed to create job directory: " + jobDirFile);
             }
             System.out.println("Created job directory: " + jobDirFile.getAbsolutePath());
 
-            File scriptDir = new File(jobDir, "script");
-            File dataDir = new File(jobDir, "data");
-            File outputDir = new File(jobDir, "output");
-
-            if (!scriptDir.mkdirs() || !dataDir.mkdirs() || !outputDir.mkdirs()) {
-                throw new IOException("Failed to create subdirectories");
+            System.out.println("Waiting for job files from the server...");
+            boolean received;
+            try {
+                received = inputsFor(jobId).get(INPUT_TIMEOUT, TimeUnit.MILLISECONDS);
+            } finally {
+                jobInputs.remove(jobId);
             }
-            System.out.println("Created subdirectories for script, data, and output");
-
-            fileServer = new ServerSocket(0);
-            fileServer.setSoTimeout(30000);
-            int filePort = fileServer.getLocalPort();
-            System.out.println("File transfer server started on port: " + filePort);
-            System.out.println("Server address: " + fileServer.getInetAddress().getHostAddress());
-
-            out.println("FILE_TRANSFER_PORT");
-            out.println(filePort);
-            out.flush();
-            System.out.println("Sent file transfer port to server");
-
-            try (Socket fileSocket = fileServer.accept()) {
-                System.out.println(
-                        "File transfer connection accepted from: " + fileSocket.getInetAddress().getHostAddress());
-                fileSocket.setSoTimeout(30000);
-                DataInputStream fileIn = new DataInputStream(fileSocket.getInputStream());
-
-                System.out.println("Receiving Python script...");
-                receiveFile(scriptDir.getAbsolutePath() + "/script.py", fileIn);
-
-                System.out.println("Receiving data files...");
-                int numFiles = fileIn.readInt();
-                System.out.println("Number of data files to receive: " + numFiles);
-
-                for (int i = 0; i < numFiles; i++) {
-                    String fileName = fileIn.readUTF();
-                    System.out.println("Receiving data file " + (i + 1) + "/" + numFiles + ": " + fileName);
-                    receiveFile(dataDir.getAbsolutePath() + "/" + fileName, fileIn);
-                }
-
-                out.println("FILES_RECEIVED");
-                out.flush();
-                System.out.println("Sent FILES_RECEIVED acknowledgment");
-
-                ProcessBuilder processBuilder = new ProcessBuilder();
-                processBuilder.command("python3",
-                        scriptDir.getAbsolutePath() + "/script.py",
-                        dataDir.getAbsolutePath(),
-                        outputDir.getAbsolutePath());
-
-                processBuilder.directory(jobDirFile);
-                processBuilder.redirectErrorStream(true);
-
-                System.out.println("Starting Python process...");
-                System.out.println("Working directory: " + processBuilder.directory().getAbsolutePath());
-                System.out.println("Command: " + String.join(" ", processBuilder.command()));
-
-                long startTime = System.currentTimeMillis();
-                Process process = processBuilder.start();
-
-                BufferedReader processOutput = new BufferedReader(new InputStreamReader(process.getInputStream()));
-                String line;
-                while ((line = processOutput.readLine()) != null) {
-                    System.out.println("Job " + jobId + " output: " + line);
-                }
-
-                int exitCode = process.waitFor();
-                long endTime = System.currentTimeMillis();
-                boolean success = exitCode == 0;
-                long executionTime = endTime - startTime;
-
-                System.out.println("Python process completed with exit code: " + exitCode);
-                System.out.println("Execution time: " + executionTime + "ms");
-
-                if (success) {
-                    File[] outputFiles = outputDir.listFiles();
-                    if (outputFiles != null && outputFiles.length > 0) {
-                        System.out.println("Found " + outputFiles.length + " output files to send");
-
-                        ServerSocket outputServer = new ServerSocket(0);
-                        int outputPort = outputServer.getLocalPort();
-                        System.out.println("Output file transfer server started on port: " + outputPort);
-
-                        out.println("OUTPUT_TRANSFER_PORT");
-                        out.println(outputPort);
-                        out.flush();
-                        System.out.println("Notified server of output transfer port: " + outputPort);
-
-                        try (Socket outputSocket = outputServer.accept()) {
-                            System.out.println("Output file transfer connection accepted from client");
-                            outputSocket.setSoTimeout(30000);
-                            DataOutputStream outputOut = new DataOutputStream(outputSocket.getOutputStream());
-
-                            outputOut.writeInt(outputFiles.length);
-                            outputOut.flush();
-                            System.out.println("Sent number of files: " + outputFiles.length);
-
-                            for (File file : outputFiles) {
-                                System.out.println("Sending output file: " + file.getName());
-                                outputOut.writeUTF(file.getName());
-                                outputOut.flush();
-                                sendFile(file.getAbsolutePath(), outputOut);
-                                System.out.println("Successfully sent file: " + file.getName());
-                            }
-                            System.out.println("All output files sent successfully");
-                        } catch (Exception e) {
-                            System.out.println("Error during output file transfer: " + e.getMessage());
-                            e.printStackTrace();
-                        } finally {
-                            outputServer.close();
-                        }
-                    } else {
-                        System.out.println("No output files found in directory: " + outputDir.getAbsolutePath());
+            checkCancelled(jobId);
+            if (!received) {
+                throw new IOException("Job files were not received completely");
+            }
+            cacheReceivedInputs(jobId, jobDirFile);
+            System.out.println("Received job files");
+
+            long startTime = System.currentTimeMillis();
+            int exitCode = runPython(jobId, jobDirFile, new File(scriptDir, "script.py"), dataDir, outputDir);
+            long endTime = System.currentTimeMillis();
+            boolean success = exitCode == 0;
+            long executionTime = endTime - startTime;
+            checkCancelled(jobId);
+
+            System.out.println("Python process completed with exit code: " + exitCode);
+            System.out.println("Execution time: " + executionTime + "ms");
+
+            if (success) {
+                File[] outputFiles = outputDir.listFiles(File::isFile);
+                if (outputFiles != null && outputFiles.length > 0) {
+                    System.out.println("Found " + outputFiles.length + " output files to send");
+                    Map<String, File> files = new LinkedHashMap<>();
+                    for (File file : outputFiles) {
+                        files.put(file.getName(), file);
+                    }
+                    try {
+                        long wireBytes = dataChannel.sendFiles(jobId, DataChannel.OUTPUT, files);
+                        System.out.println("All output files sent successfully (" + wireBytes + " bytes on the wire)");
+                    } catch (IOException e) {
+                        System.out.println("Error during output file transfer: " + e.getMessage());
+                        e.printStackTrace();
                     }
+                } else {
+                    System.out.println("No output files found in directory: " + outputDir.getAbsolutePath());
                 }
+            }
 
-                deleteDirectory(jobDirFile);
+            deleteDirectory(jobDirFile);
 
-                System.out.println("Sending job completion notification to server...");
-                out.println("JOB_COMPLETE");
-                out.println(jobId);
-                out.println(success);
-                out.println(executionTime);
-                System.out.println("Job completion notification sent.");
+            System.out.println("Sending job completion notification to server...");
+            send(ControlFrame.Op.JOB_COMPLETE, jobId, String.valueOf(success), String.valueOf(executionTime));
+            System.out.println("Job completion notification sent.");
 
-                available = true;
-                currentJob = null;
+            job.setStatus(success ? "COMPLETED" : "FAILED");
+            job.setEndTime(LocalDateTime.now());
 
-            } catch (SocketTimeoutException e) {
-                System.out.println("Timeout waiting for file transfer connection");
-                throw new IOException("File transfer connection timed out", e);
-            }
+        } catch (CancellationException e) {
+            expectedInputs.remove(jobId);
+            deleteDirectory(jobDir(jobId));
+            send(ControlFrame.Op.JOB_STOPPED, jobId);
+            System.out.println("Job " + jobId + " cancelled");
 
+            job.setStatus("CANCELLED");
+            job.setEndTime(LocalDateTime.now());
         } catch (Exception e) {
             System.out.println("Error processing job: " + e.getMessage());
             e.printStackTrace();
+            expectedInputs.remove(jobId);
+            deleteDirectory(jobDir(jobId));
 
             System.out.println("Sending job failure notification to server...");
-            out.println("JOB_COMPLETE");
-            out.println(jobId != null ? jobId : "UNKNOWN_JOB");
-            out.println(false);
-            out.println(0);
+            send(ControlFrame.Op.JOB_COMPLETE, jobId != null ? jobId : "UNKNOWN_JOB", "false", "0");
             System.out.println("Job failure notification sent.");
 
-            available = true;
-            currentJob = null;
-        } finally {
-            if (fileServer != null) {
-                try {
-                    fileServer.close();
-                } catch (IOException e) {
-                    System.out.println("Error closing file server socket: " + e.getMessage());
-                }
-            }
+            job.setStatus("FAILED");
+            job.setEndTime(LocalDateTime.now());
         }
     }
 
-    private void receiveFile(String filePath, DataInputStream in) throws IOException {
-        File file = new File(filePath);
-        System.out.println("Receiving file: " + filePath);
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            long fileSize = in.readLong();
-            System.out.println("File size: " + fileSize + " bytes");
-
-            byte[] buffer = new byte[8192];
-            long remaining = fileSize;
-            long totalRead = 0;
-
-            while (remaining > 0) {
-                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
-                if (read == -1) {
-                    throw new IOException("End of stream reached before file transfer completed. Read " +
-                            totalRead + " of " + fileSize + " bytes");
-                }
-                fos.write(buffer, 0, read);
-                remaining -= read;
-                totalRead += read;
-                if (totalRead % (1024 * 1024) == 0) {
-                    System.out.println("Progress: " + totalRead + "/" + fileSize + " bytes (" +
-                            (totalRead * 100 / fileSize) + "%)");
+    private int runPython(String jobId, File jobDirFile, File script, File dataDir, File outputDir)
+            throws IOException, InterruptedException {
+        if (pythonPool != null && PythonPool.accepts(script)) {
+            File logFile = new File(jobDirFile, "python.log");
+            System.out.println("Running job " + jobId + " on a pooled Python interpreter");
+            try {
+                int exitCode = pythonPool.run(script, jobDirFile, logFile,
+                        pid -> ProcessHandle.of(pid).ifPresent(child -> processStarted(jobId, child)),
+                        dataDir.getAbsolutePath(), outputDir.getAbsolutePath());
+                try (BufferedReader processOutput = new BufferedReader(new FileReader(logFile))) {
+                    String line;
+                    while ((line = processOutput.readLine()) != null) {
+                        System.out.println("Job " + jobId + " output: " + line);
+                    }
                 }
+                logFile.delete();
+                return exitCode;
+            } catch (IOException e) {
+                System.out.println("Pooled execution failed, falling back to a new Python process: "
+                        + e.getMessage());
             }
-            System.out.println("File received successfully: " + filePath);
-        } catch (Exception e) {
-            System.out.println("Error receiving file " + filePath + ": " + e.getMessage());
-            e.printStackTrace();
-            throw new IOException("Failed to receive file: " + e.getMessage(), e);
         }
-    }
 
-    private void sendFile(String filePath, DataOutputStream out) throws IOException {
-        File file = new File(filePath);
-        System.out.println("Sending file: " + filePath);
-        if (!file.exists()) {
-            throw new IOException("File does not exist: " + filePath);
-        }
-        if (!file.isFile()) {
-            throw new IOException("Path is not a file: " + filePath);
-        }
+        ProcessBuilder processBuilder = new ProcessBuilder();
+        processBuilder.command("python3",
+                script.getAbsolutePath(),
+                dataDir.getAbsolutePath(),
+                outputDir.getAbsolutePath());
 
-        long fileSize = file.length();
-        System.out.println("File size: " + fileSize + " bytes");
+        processBuilder.directory(jobDirFile);
+        processBuilder.redirectErrorStream(true);
 
-        out.writeLong(fileSize);
-        out.flush();
+        System.out.println("Starting Python process...");
+        System.out.println("Working directory: " + processBuilder.directory().getAbsolutePath());
+        System.out.println("Command: " + String.join(" ", processBuilder.command()));
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[8192];
-            long totalSent = 0;
-            int read;
+        Process process = processBuilder.start();
+        processStarted(jobId, process.toHandle());
 
-            while ((read = fis.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-                totalSent += read;
-                if (totalSent % (1024 * 1024) == 0) {
-                    System.out.println("Progress: " + totalSent + "/" + fileSize + " bytes (" +
-                            (totalSent * 100 / fileSize) + "%)");
-                }
-            }
-            out.flush();
-            System.out.println("File sent successfully: " + filePath);
-        } catch (Exception e) {
-            System.out.println("Error sending file " + filePath + ": " + e.getMessage());
-            e.printStackTrace();
-            throw new IOException("Failed to send file: " + e.getMessage());
+        BufferedReader processOutput = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line;
+        while ((line = processOutput.readLine()) != null) {
+            System.out.println("Job " + jobId + " output: " + line);
         }
+
+        return process.waitFor();
     }
 
     private boolean deleteDirectory(File directory) {
@@ -373,14 +449,53 @@ public class Worker implements Runnable {
         }
     }
 
-    private void cancelCurrentJob() {
-        if (currentJob != null) {
-            running = false;
-            currentJob = null;
-            available = true;
+    /**
+     * Stops the job wherever it is: a queued job never starts, one waiting for its inputs stops
+     * waiting, and a running one has its Python process tree killed. The job's thread then cleans up
+     * and reports JOB_STOPPED, which frees its slot on the server.
+     */
+    private void cancelJob(String jobId) {
+        if (!runningJobs.containsKey(jobId) || !cancelledJobs.add(jobId)) {
+            return;
+        }
+        System.out.println("Cancelling job " + jobId);
+        inputsFor(jobId).complete(false);
+        ProcessHandle process = jobProcesses.get(jobId);
+        if (process != null) {
+            killProcessTree(process);
+        }
+    }
+
+    private void processStarted(String jobId, ProcessHandle process) {
+        jobProcesses.put(jobId, process);
+        // A cancel that came while the process was starting could not kill it.
+        if (cancelledJobs.contains(jobId)) {
+            killProcessTree(process);
         }
     }
 
+    private void checkCancelled(String jobId) {
+        if (cancelledJobs.contains(jobId)) {
+            throw new CancellationException("Job " + jobId + " was cancelled");
+        }
+    }
+
+    /** Sends SIGTERM to the process and all its descendants, and SIGKILL to any still alive after the grace period. */
+    private void killProcessTree(ProcessHandle process) {
+        // Collected up front: once the parent dies its children are re-parented and no longer its descendants.
+        List<ProcessHandle> tree = process.descendants().collect(Collectors.toList());
+        tree.add(0, process);
+        tree.forEach(ProcessHandle::destroy);
+        CompletableFuture.delayedExecutor(CANCEL_GRACE_PERIOD, TimeUnit.MILLISECONDS).execute(() -> {
+            for (ProcessHandle handle : tree) {
+                if (handle.isAlive()) {
+                    System.out.println("Killing process " + handle.pid() + " that ignored SIGTERM");
+                    handle.destroyForcibly();
+                }
+            }
+        });
+    }
+
     public String getWorkerId() {
         return workerId;
     }
@@ -389,20 +504,15 @@ public class Worker implements Runnable {
         return socket;
     }
 
-    public boolean isAvailable() {
-        return available;
+    public int getSlots() {
+        return slots;
     }
 
-    public void setAvailable(boolean available) {
-        this.available = available;
-    }
-
-    public Job getCurrentJob() {
-        return currentJob;
+    public boolean isAvailable() {
+        return runningJobs.size() < slots;
     }
 
-    public void setCurrentJob(Job currentJob) {
-        this.currentJob = currentJob;
-        this.available = false;
+    public Map<String, Job> getRunningJobs() {
+        return runningJobs;
     }
 }
\ No newline at end of file
@@ -73,21 +73,18 @@ public class WorkerHandler implements Runnable {
             System.out.println("Execution time: " + executionTime + "ms");
 
             WorkerInfo worker = workers.get(workerId);
-            if (worker != null) {
-                worker.available = true;
-                worker.currentJob = null;
+            if (worker != null && worker.releaseSlot(jobId)) {
                 worker.updateMetrics(executionTime);
             }
 
             JobInfo job = jobs.get(jobId);
-            if (job != null) {
-                job.status = success ? "COMPLETED" : "FAILED";
+            if (job != null && job.transition(JobState.PROCESSING, success ? JobState.COMPLETED : JobState.FAILED)) {
                 job.endTime = System.currentTimeMillis();
 
                 performanceMetrics.computeIfAbsent(jobId, k -> new ArrayList<>())
                         .add(new PerformanceMetric(System.currentTimeMillis(), executionTime, success));
 
-                System.out.println("Updated job " + jobId + " status to " + job.status);
+                System.out.println("Updated job " + jobId + " status to " + job.state());
             } else {
                 System.out.println("Warning: Job " + jobId + " not found in jobs map");
             }
@@ -105,17 +102,19 @@ public class WorkerHandler implements Runnable {
 
     private void handleWorkerFailure() {
         WorkerInfo failedWorker = workers.get(workerId);
-        if (failedWorker != null && failedWorker.currentJob != null) {
-            JobInfo job = jobs.get(failedWorker.currentJob);
-            if (job != null && "PROCESSING".equals(job.status)) {
+        if (failedWorker == null) {
+            return;
+        }
+        for (String runningJobId : failedWorker.runningJobs) {
+            JobInfo job = jobs.get(runningJobId);
+            boolean retry = job != null && job.retryCount < 3;
+            if (job != null && job.transition(JobState.PROCESSING, retry ? JobState.PENDING : JobState.FAILED)) {
                 System.out.println("Worker failed while processing job " + job.id);
-                if (job.retryCount < 3) {
+                if (retry) {
                     job.retryCount++;
-                    job.status = "PENDING";
                     pendingJobs.add(job);
                     System.out.println("Resubmitting job " + job.id + " (attempt " + job.retryCount + ")");
                 } else {
-                    job.status = "FAILED";
                     System.out.println("Job " + job.id + " failed after " + job.retryCount + " attempts");
                 }
             }
@@ -128,12 +127,11 @@ public class WorkerHandler implements Runnable {
             System.out.println("Received job cancellation request for job " + jobId);
 
             WorkerInfo worker = workers.get(workerId);
-            if (worker != null && worker.currentJob != null && jobId.equals(worker.currentJob)) {
+            if (worker != null && worker.runningJobs.contains(jobId)) {
                 System.out.println("Worker " + workerId + " is processing the job " + jobId);
-                worker.out.println("CANCEL_JOB");
+                worker.send(ControlFrame.Op.CANCEL_JOB, jobId);
                 JobInfo job = jobs.get(jobId);
-                if (job != null) {
-                    job.status = "CANCELLED";
+                if (job != null && job.moveTo(JobState.CANCELLED) != null) {
                     job.endTime = System.currentTimeMillis();
                     out.println("JOB_CANCELLED");
                     System.out.println("Job " + jobId + " status updated to CANCELLED");
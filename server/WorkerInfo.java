@@ -1,33 +1,70 @@
-import java.io.*;
-import java.net.Socket;
-
-public class WorkerInfo {
-    String id;
-    Socket socket;
-    PrintWriter out;
-    BufferedReader in;
-    boolean available;
-    String currentJob;
-    int completedJobs;
-    long totalExecutionTime;
-    double averageExecutionTime;
-    long lastHeartbeat;
-
-    public WorkerInfo(String id, Socket socket, PrintWriter out, BufferedReader in) {
-        this.id = id;
-        this.socket = socket;
-        this.out = out;
-        this.in = in;
-        this.available = true;
-        this.completedJobs = 0;
-        this.totalExecutionTime = 0;
-        this.averageExecutionTime = 0;
-        this.lastHeartbeat = System.currentTimeMillis();
-    }
-
-    void updateMetrics(long executionTime) {
-        completedJobs++;
-        totalExecutionTime += executionTime;
-        averageExecutionTime = (double) totalExecutionTime / completedJobs;
-    }
-} 
\ No newline at end of file
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WorkerInfo {
+    String id;
+    ControlServer.Connection connection;
+    volatile int slots;
+    volatile boolean draining;
+    final AtomicInteger freeSlots;
+    final Set<String> runningJobs = ConcurrentHashMap.newKeySet();
+    final Set<String> cachedBlobs = ConcurrentHashMap.newKeySet();
+    int completedJobs;
+    long totalExecutionTime;
+    double averageExecutionTime;
+    volatile long lastHeartbeat;
+
+    public WorkerInfo(String id, ControlServer.Connection connection) {
+        this.id = id;
+        this.connection = connection;
+        this.slots = 0;
+        this.freeSlots = new AtomicInteger(0);
+        this.completedJobs = 0;
+        this.totalExecutionTime = 0;
+        this.averageExecutionTime = 0;
+        this.lastHeartbeat = System.currentTimeMillis();
+    }
+
+    synchronized void setSlots(int slots) {
+        freeSlots.addAndGet(slots - this.slots);
+        this.slots = slots;
+    }
+
+    boolean hasFreeSlot() {
+        return freeSlots.get() > 0 && !draining;
+    }
+
+    boolean claimSlot(String jobId) {
+        if (draining) {
+            return false;
+        }
+        int free;
+        do {
+            free = freeSlots.get();
+            if (free <= 0) {
+                return false;
+            }
+        } while (!freeSlots.compareAndSet(free, free - 1));
+        runningJobs.add(jobId);
+        return true;
+    }
+
+    void send(ControlFrame.Op op, String... args) {
+        connection.send(op, args);
+    }
+
+    boolean releaseSlot(String jobId) {
+        if (runningJobs.remove(jobId)) {
+            freeSlots.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    void updateMetrics(long executionTime) {
+        completedJobs++;
+        totalExecutionTime += executionTime;
+        averageExecutionTime = (double) totalExecutionTime / completedJobs;
+    }
+}
\ No newline at end of file
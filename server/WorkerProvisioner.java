@@ -0,0 +1,10 @@
+/**
+ * Starts and stops worker nodes for the {@link Autoscaler}. A launched worker connects to the server
+ * by itself and is only known to the server from then on.
+ */
+public interface WorkerProvisioner {
+    void launch() throws Exception;
+
+    /** Stops a worker that has been drained and runs no jobs. */
+    void retire(WorkerInfo worker);
+}
@@ -0,0 +1,98 @@
+# Long-lived interpreter used by Worker's PythonPool.
+# Usage: python3 msp_pool.py [module ...]
+# The listed modules are imported once up front; every job then runs in a
+# forked child so it starts with those modules already loaded.
+#
+# Protocol (one tab-separated line per message on stdin/stdout):
+#   -> RUN <script> <working dir> <log file> [args ...]
+#   <- STARTED <pid>
+#   <- EXIT <exit code>
+
+import importlib
+import os
+import runpy
+import sys
+import traceback
+
+
+
+def reply(*fields):
+    sys.stdout.write("\t".join(str(f) for f in fields) + "\n")
+    sys.stdout.flush()
+
+
+def preload(modules):
+    for name in modules:
+        try:
+            importlib.import_module(name)
+        except Exception as e:
+            sys.stderr.write("Could not preload %s: %s\n" % (name, e))
+
+
+def exit_code(status):
+    if os.WIFEXITED(status):
+        return os.WEXITSTATUS(status)
+    if os.WIFSIGNALED(status):
+        return -os.WTERMSIG(status)
+    return 1
+
+
+def run_child(script, cwd, log_path, args):
+    code = 1
+    try:
+        devnull = os.open(os.devnull, os.O_RDONLY)
+        os.dup2(devnull, 0)
+        log = os.open(log_path, os.O_WRONLY | os.O_CREAT | os.O_TRUNC, 0o644)
+        os.dup2(log, 1)
+        os.dup2(log, 2)
+        os.chdir(cwd)
+        sys.argv = [script] + args
+        sys.path.insert(0, os.path.dirname(os.path.abspath(script)))
+        try:
+            runpy.run_path(script, run_name="__main__")
+            code = 0
+        except SystemExit as e:
+            if e.code is None or isinstance(e.code, int):
+                code = e.code or 0
+            else:
+                print(e.code, file=sys.stderr)
+                code = 1
+        except BaseException:
+            traceback.print_exc()
+            code = 1
+    finally:
+        try:
+            sys.stdout.flush()
+            sys.stderr.flush()
+        finally:
+            os._exit(code)
+
+
+def run_job(script, cwd, log_path, args):
+    pid = os.fork()
+    if pid == 0:
+        run_child(script, cwd, log_path, args)
+    reply("STARTED", pid)
+    _, status = os.waitpid(pid, 0)
+    reply("EXIT", exit_code(status))
+
+
+def main():
+    if not hasattr(os, "fork"):
+        reply("UNSUPPORTED")
+        return
+    preload(sys.argv[1:])
+    reply("READY")
+
+    for line in sys.stdin:
+        fields = line.rstrip("\n").split("\t")
+        if fields[0] == "RUN" and len(fields) >= 4:
+            run_job(fields[1], fields[2], fields[3], fields[4:])
+        elif fields[0] == "EXIT":
+            break
+        else:
+            reply("ERROR", "unknown request: " + fields[0])
+
+
+if __name__ == "__main__":
+    main()